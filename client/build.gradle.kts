@@ -23,4 +23,6 @@ dependencies {
     implementation("io.ktor:ktor-serialization-kotlinx-json:$ktor_version")
     implementation("io.ktor:ktor-client-content-negotiation:$ktor_version")
     implementation("io.ktor:ktor-client-websockets-jvm:$ktor_version")
+
+    testImplementation("org.jetbrains.kotlin:kotlin-test-junit:$kotlin_version")
 }
\ No newline at end of file
@@ -4,20 +4,36 @@ import io.ktor.client.*
 import io.ktor.client.engine.cio.*
 import io.ktor.client.plugins.contentnegotiation.*
 import io.ktor.client.plugins.websocket.*
-import io.ktor.serialization.*
-import io.ktor.serialization.kotlinx.*
+import io.ktor.client.request.*
+import io.ktor.http.*
 import io.ktor.serialization.kotlinx.json.*
-import io.ktor.util.reflect.*
-import io.ktor.utils.io.charsets.*
 import io.ktor.websocket.*
 import kotlinx.coroutines.*
-import kotlinx.serialization.Serializable
-import kotlinx.serialization.json.Json
+import kotlinx.coroutines.channels.ClosedSendChannelException
 
 abstract class ClientReceiver {
     abstract fun closed(reason: String?, exceptionReason: String?, connecting: Boolean)
     abstract fun received(packet: Packet)
     abstract fun createDeveloperData(): DeveloperInitPacket
+
+    /**
+     * Sent right after [createDeveloperData], in order. Called on a background thread, so reading
+     * the next batch may block. Servers without [PROTOCOL_VERSION_INIT_BATCHES] get all files in the init packet.
+     */
+    open fun createDeveloperBatches(): Iterator<DeveloperInitBatchPacket> = emptyList<DeveloperInitBatchPacket>().iterator()
+
+    /**
+     * Called whenever files of the developer were sent, the last time with [sentFiles] equal to [totalFiles].
+     */
+    open fun sentDeveloperFiles(sentFiles: Int, totalFiles: Int) {}
+
+    /**
+     * A packet that was queued is not sent after all, it made room for a newer one (see [OverflowPolicy.DROP_OLDEST]).
+     * State that assumes the server got it has to be reset.
+     */
+    open fun evicted(packet: Packet) {}
+
+    abstract fun createUserSyncData(): UserSyncPacket
     abstract fun connectedSession()
 }
 
@@ -26,12 +42,27 @@ private const val SERVER_LOCATION = "codewithmarc.tutorium.tudalgo.org"
 private const val SERVER_PORT = 80
 private const val SERVER_PATH = "/connection"
 
+// Smaller frames, like most user code updates, are sent uncompressed
+private const val DEFLATE_MIN_BYTES = 512
+
+const val OUTBOUND_CAPACITY = 1024
+// Packets that are queued while a frame is sent go into one PacketBatch
+private const val MAX_BATCH_PACKETS = 64
+
 
 /*private const val SERVER_LOCATION = "0.0.0.0"
 private const val SERVER_PORT = 8080
 private const val SERVER_PATH = "/connection"*/
 
-class ClientApplication {
+class ClientApplication(
+    private val room: String? = null,
+    private val useBinaryCodec: Boolean = true,
+    private val host: String = SERVER_LOCATION,
+    private val port: Int = SERVER_PORT,
+    private val clientId: String? = null,
+    private val outboundCapacity: Int = OUTBOUND_CAPACITY,
+    private val overflowPolicy: OverflowPolicy = OverflowPolicy.DROP_NEWEST
+) {
 
     private var connected: Boolean = false
     private var password: String? = null
@@ -39,6 +70,7 @@ class ClientApplication {
 
     private val outgoingBlocks: List<ClientApplication.() -> Unit> = mutableListOf()
     var currentSession: DefaultClientWebSocketSession? = null
+    var currentOutbound: OutboundQueue? = null
 
     val currentSessionLock = Object()
     val outgoingBlocksLock = Object()
@@ -50,26 +82,22 @@ class ClientApplication {
             json()
         }
         install(WebSockets) {
-            contentConverter = KotlinxWebsocketSerializationConverter(Json {
-                allowStructuredMapKeys = true
-            })
+            extensions {
+                install(WebSocketDeflateExtension) {
+                    compressIfBiggerThan(DEFLATE_MIN_BYTES)
+                }
+            }
         }
     }
 
 
-    fun sendUnsafe(body: Packet): Boolean {
-        val session: DefaultClientWebSocketSession?
-        synchronized(currentSessionLock) {
-            session = currentSession
-        }
-
-        if (session == null) {
-            return false;
-        }
-        session.launch {
-            session.sendSerialized(body)
-        }
-        return true;
+    /**
+     * Queues the packet for the current session without blocking. Packets are sent in this order,
+     * the ones queued while the socket is busy together in one [PacketBatch].
+     */
+    fun sendUnsafe(body: Packet): SendResult {
+        val outbound = synchronized(currentSessionLock) { currentOutbound } ?: return SendResult.DROPPED
+        return outbound.offer(body)
     }
 
     /*
@@ -117,25 +145,56 @@ class ClientApplication {
                 try {
 
 
-                    val session = client.webSocket(host = SERVER_LOCATION, port = SERVER_PORT, path = SERVER_PATH) {
-
-
+                    val session = client.webSocket(host = host, port = port, path = SERVER_PATH, request = {
+                        parameter(PROTOCOL_VERSION_PARAMETER, PROTOCOL_VERSION)
+                        if (room != null) {
+                            parameter(ROOM_PARAMETER, room)
+                        }
+                        if (clientId != null) {
+                            parameter(CLIENT_PARAMETER, clientId)
+                        }
+                        if (useBinaryCodec) {
+                            header(HttpHeaders.SecWebSocketProtocol, CBOR_PROTOCOL)
+                        }
+                    }) {
+                        // The server only echoes the protocol if it understands it
+                        val codec = createPacketCodec(call.response.headers[HttpHeaders.SecWebSocketProtocol], false)
+                        val serverVersion = call.response.headers[PROTOCOL_VERSION_HEADER]?.toIntOrNull() ?: 0
+
+                        // Packets queued during the handshake are sent after it
+                        val outbound = OutboundQueue(outboundCapacity, overflowPolicy) { clientReceiver.evicted(it) }
+                        // Older servers need one packet per frame
+                        val maxBatchPackets = if (serverVersion >= PROTOCOL_VERSION_PACKET_BATCHES) MAX_BATCH_PACKETS else 1
                         synchronized(currentSessionLock) {
                             currentSession = this
+                            currentOutbound = outbound
                         }
 
                         launch {
 
                             try {
-                                sendSerialized(password ?: NO_PASSWORD)
+                                send(codec.encodeString(password ?: NO_PASSWORD))
                                 if (password != null) {
-                                    sendSerialized<Packet>(clientReceiver.createDeveloperData())
+                                    sendDeveloperData(clientReceiver, codec, serverVersion >= PROTOCOL_VERSION_INIT_BATCHES)
+                                } else {
+                                    send(codec.encodePacket(clientReceiver.createUserSyncData()))
+                                }
+
+                                launch {
+                                    try {
+                                        while (true) {
+                                            val packets = outbound.take(maxBatchPackets) ?: break
+                                            send(codec.encodePacket(packets.singleOrNull() ?: PacketBatch(packets)))
+                                        }
+                                    } catch (e: ClosedSendChannelException) {
+                                        // Session is over, the receiving side reports why
+                                    }
                                 }
 
                                 clientReceiver.connectedSession()
 
                                 for (frame in incoming) {
-                                    val packet = deserialize<Packet>(frame)
+                                    val packet = codec.decodePacket(frame)
                                     // println(packet)
                                     clientReceiver.received(packet)
                                 }
@@ -143,6 +202,8 @@ class ClientApplication {
                                 reason = closeReason.await()
                             } catch (e: Exception) {
                                 exceptionReason = e
+                            } finally {
+                                outbound.close()
                             }
                             //println("Was closed because of: $reason")
 
@@ -154,7 +215,9 @@ class ClientApplication {
 
                         synchronized(currentSessionLock) {
                             currentSession = null
+                            currentOutbound = null
                         }
+                        outbound.close()
                     }
                 } catch (e: Exception) {
                     // e.printStackTrace()
@@ -175,8 +238,39 @@ class ClientApplication {
     }
 }
 
-fun createClient(): ClientApplication {
-    return ClientApplication()
+private suspend fun DefaultClientWebSocketSession.sendDeveloperData(
+    clientReceiver: ClientReceiver,
+    codec: PacketCodec,
+    batched: Boolean
+) {
+    val init = clientReceiver.createDeveloperData()
+    val batches = clientReceiver.createDeveloperBatches()
+
+    if (!batched) {
+        // Older servers take all files with the init packet
+        val code = HashMap(init.code)
+        while (batches.hasNext()) {
+            code.putAll(withContext(Dispatchers.IO) { batches.next() }.code)
+        }
+        send(codec.encodePacket(DeveloperInitPacket(init.projectName, code)))
+        clientReceiver.sentDeveloperFiles(code.size, code.size)
+        return
+    }
+
+    send(codec.encodePacket(init))
+    if (!batches.hasNext()) {
+        clientReceiver.sentDeveloperFiles(init.code.size, init.code.size)
+    }
+    // Sending suspends while the socket is busy, so only the next batch is read ahead
+    while (batches.hasNext()) {
+        val batch = withContext(Dispatchers.IO) { batches.next() }
+        send(codec.encodePacket(batch))
+        clientReceiver.sentDeveloperFiles(init.code.size + batch.sentFiles, init.code.size + batch.totalFiles)
+    }
+}
+
+fun createClient(room: String, clientId: String): ClientApplication {
+    return ClientApplication(room, clientId = clientId)
 }
 
 
@@ -197,6 +291,10 @@ suspend fun main() {
             return DeveloperInitPacket("DEINE MUDDA", HashMap())
         }
 
+        override fun createUserSyncData(): UserSyncPacket {
+            return UserSyncPacket(emptyMap())
+        }
+
         override fun connectedSession() {
 
         }
@@ -208,48 +306,3 @@ suspend fun main() {
 
     delay(50000)
 }
-
-
-public suspend inline fun <reified T> DefaultClientWebSocketSession.deserialize(frame: Frame): T {
-    val converter = converter
-        ?: throw WebsocketConverterNotFoundException("No converter was found for websocket")
-
-    return deserializedBase<T>(
-        converter,
-        call.request.headers.suitableCharset(),
-        frame
-    ) as T
-}
-
-public suspend inline fun <reified T> WebSocketSession.deserializedBase(
-    converter: WebsocketContentConverter,
-    charset: Charset,
-    frame: Frame
-): Any? {
-
-    if (!converter.isApplicable(frame)) {
-        throw WebsocketDeserializeException(
-            "Converter doesn't support frame type ${frame.frameType.name}",
-            frame = frame
-        )
-    }
-
-    val typeInfo = typeInfo<T>()
-    val result = converter.deserialize(
-        charset = charset,
-        typeInfo = typeInfo,
-        content = frame
-    )
-
-    if (result is T) return result
-    if (result == null) {
-        if (typeInfo.kotlinType?.isMarkedNullable == true) return null
-        throw WebsocketDeserializeException("Frame has null content", frame = frame)
-    }
-
-    throw WebsocketDeserializeException(
-        "Can't deserialize value : expected value of type ${T::class.simpleName}," +
-                " got ${result::class.simpleName}",
-        frame = frame
-    )
-}
\ No newline at end of file
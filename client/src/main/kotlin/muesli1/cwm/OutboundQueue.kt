@@ -0,0 +1,130 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.channels.Channel
+
+enum class SendResult {
+    QUEUED,
+    // Replaced a queued packet that was not sent yet
+    COALESCED,
+    // Not sent, there is no session or the queue is full
+    DROPPED
+}
+
+/**
+ * What happens to a packet that does not fit into a full [OutboundQueue].
+ */
+enum class OverflowPolicy {
+    DROP_NEWEST,
+    // The sender of the dropped packet was told QUEUED, so it is reported to the onEvicted callback
+    DROP_OLDEST
+}
+
+/**
+ * Packets waiting to be sent over one session, in the order they were queued. A packet with the full state of
+ * a path replaces the last queued packet of that path if it has the same type, so a stalled socket does not
+ * pile up outdated texts. Patches never replace anything, they depend on the packets before them.
+ */
+class OutboundQueue(
+    private val capacity: Int,
+    private val policy: OverflowPolicy,
+    private val onEvicted: (Packet) -> Unit = {}
+) {
+    private val packets = ArrayDeque<Packet>()
+    private val lock = Object()
+    // Guarded by lock
+    private var closed = false
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+
+    val size: Int
+        get() = synchronized(lock) { packets.size }
+
+    fun offer(packet: Packet): SendResult {
+        var evicted: Packet? = null
+        synchronized(lock) {
+            if (closed) {
+                return SendResult.DROPPED
+            }
+            if (replace(packet)) {
+                return SendResult.COALESCED
+            }
+            if (packets.size >= capacity) {
+                when (policy) {
+                    OverflowPolicy.DROP_NEWEST -> return SendResult.DROPPED
+                    OverflowPolicy.DROP_OLDEST -> evicted = packets.removeFirst()
+                }
+            }
+            packets.addLast(packet)
+        }
+        signal.trySend(Unit)
+        // Outside of the lock, the callback may queue packets itself
+        evicted?.let(onEvicted)
+        return SendResult.QUEUED
+    }
+
+    private fun replace(packet: Packet): Boolean {
+        val path = packet.replaceablePath() ?: return false
+        for (i in packets.indices.reversed()) {
+            val queued = packets[i]
+            if (queued.path() == path) {
+                if (queued::class != packet::class) {
+                    return false
+                }
+                packets[i] = packet
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Suspends until a packet is queued and returns up to [max] packets in order, null once the queue is closed.
+     */
+    suspend fun take(max: Int): List<Packet>? {
+        while (true) {
+            synchronized(lock) {
+                if (packets.isNotEmpty()) {
+                    val taken = ArrayList<Packet>(minOf(max, packets.size))
+                    while (taken.size < max && packets.isNotEmpty()) {
+                        taken.add(packets.removeFirst())
+                    }
+                    return taken
+                }
+                if (closed) {
+                    return null
+                }
+            }
+            signal.receiveCatching()
+        }
+    }
+
+    /**
+     * Packets that were not sent yet are dropped.
+     */
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            packets.clear()
+        }
+        signal.close()
+    }
+}
+
+private fun Packet.path(): String? {
+    return when (this) {
+        is DeveloperUpdatePacket -> path
+        is DeveloperPatchPacket -> path
+        is DeveloperTextRequestPacket -> path
+        is UserCodeUpdatePacket -> path
+        else -> null
+    }
+}
+
+// Packets that make every earlier packet of the same type and path obsolete
+private fun Packet.replaceablePath(): String? {
+    return when (this) {
+        is DeveloperUpdatePacket -> path
+        is DeveloperTextRequestPacket -> path
+        is UserCodeUpdatePacket -> path
+        else -> null
+    }
+}
@@ -0,0 +1,51 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.runBlocking
+import kotlin.test.*
+
+class OutboundQueueTest {
+
+    @Test
+    fun testCoalesceKeepsOrder() = runBlocking {
+        val queue = OutboundQueue(10, OverflowPolicy.DROP_NEWEST)
+        assertEquals(SendResult.QUEUED, queue.offer(UserCodeUpdatePacket("src/A.java", listOf("1"))))
+        assertEquals(SendResult.QUEUED, queue.offer(UserCodeUpdatePacket("src/B.java", listOf("2"))))
+        assertEquals(SendResult.COALESCED, queue.offer(UserCodeUpdatePacket("src/A.java", listOf("3"))))
+
+        assertEquals(
+            listOf<Packet>(UserCodeUpdatePacket("src/A.java", listOf("3")), UserCodeUpdatePacket("src/B.java", listOf("2"))),
+            queue.take(10)
+        )
+    }
+
+    @Test
+    fun testPatchesAreNotReplaced() = runBlocking {
+        val queue = OutboundQueue(10, OverflowPolicy.DROP_NEWEST)
+        val patch = DeveloperPatchPacket("src/A.java", 1, 2, listOf(TextEdit(0, 0, "x")))
+        queue.offer(DeveloperUpdatePacket("src/A.java", "a"))
+        queue.offer(patch)
+        // The patch depends on the first text, so the new text is sent after it
+        assertEquals(SendResult.QUEUED, queue.offer(DeveloperUpdatePacket("src/A.java", "b")))
+
+        assertEquals(listOf(DeveloperUpdatePacket("src/A.java", "a"), patch), queue.take(2))
+        assertEquals(listOf<Packet>(DeveloperUpdatePacket("src/A.java", "b")), queue.take(2))
+    }
+
+    @Test
+    fun testOverflow() = runBlocking {
+        val newest = OutboundQueue(2, OverflowPolicy.DROP_NEWEST)
+        val evicted = mutableListOf<Packet>()
+        val oldest = OutboundQueue(2, OverflowPolicy.DROP_OLDEST) { evicted.add(it) }
+        val packets = (0 until 3).map { UserCodeUpdatePacket("src/$it.java", listOf("$it")) }
+
+        assertEquals(listOf(SendResult.QUEUED, SendResult.QUEUED, SendResult.DROPPED), packets.map { newest.offer(it) })
+        assertEquals(packets.take(2), newest.take(10))
+        assertEquals(listOf(SendResult.QUEUED, SendResult.QUEUED, SendResult.QUEUED), packets.map { oldest.offer(it) })
+        assertEquals(packets.drop(1), oldest.take(10))
+        assertEquals<List<Packet>>(packets.take(1), evicted)
+
+        oldest.close()
+        assertNull(oldest.take(10))
+        assertEquals(SendResult.DROPPED, oldest.offer(packets[0]))
+    }
+}
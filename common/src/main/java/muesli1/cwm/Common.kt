@@ -6,9 +6,46 @@ import kotlinx.serialization.json.Json
 
 
 const val MAX_USER_CODE_LENGTH = 5000
+const val MAX_CLIENT_ID_LENGTH = 64
 const val MAX_USER_CODE_ENTRIES = 10
+const val MAX_PATH_LENGTH = 1024
+// Paths that get an id in a room's SharedPathDictionary, later paths are sent in full
+const val MAX_SHARED_PATHS = 8192
 const val NO_PASSWORD = "NO_PASSWORD"
 
+/**
+ * Sent by clients as query parameter, old clients without it are version 0.
+ */
+const val PROTOCOL_VERSION_PARAMETER = "version"
+const val PROTOCOL_VERSION = 5
+
+// Users understand DeveloperPatchPacket
+const val PROTOCOL_VERSION_PATCHES = 1
+// Users send UserSyncPacket right after the password
+const val PROTOCOL_VERSION_SYNC = 2
+// Developers get ClusteredUserCodePacket instead of CompleteUserCodePacket
+const val PROTOCOL_VERSION_SNIPPETS = 3
+// Servers take the developer's files as DeveloperInitBatchPacket after an init packet without them
+const val PROTOCOL_VERSION_INIT_BATCHES = 4
+// Servers take several packets in one PacketBatch frame
+const val PROTOCOL_VERSION_PACKET_BATCHES = 5
+
+/**
+ * Response header of the websocket handshake with the [PROTOCOL_VERSION] of the server, so clients only send
+ * packets it understands. Old servers do not send it and count as version 0.
+ */
+const val PROTOCOL_VERSION_HEADER = "X-CWM-Protocol-Version"
+
+/**
+ * Query parameter with the project a user wants to join. Developers join the room of their init packet.
+ */
+const val ROOM_PARAMETER = "room"
+
+/**
+ * Query parameter with an id that stays the same across reconnects of one client.
+ */
+const val CLIENT_PARAMETER = "client"
+
 @Serializable
 sealed class Packet
 
@@ -18,12 +55,49 @@ data class DeveloperInitPacket(
     val code: MutableMap<String, String>
 ) : Packet()
 
+/**
+ * Part of the developer's files, sent after a [DeveloperInitPacket] that leaves them out, so big projects
+ * are neither read nor sent in one piece. [sentFiles] of [totalFiles] are sent once this batch is.
+ */
+@Serializable
+data class DeveloperInitBatchPacket(
+    val code: Map<String, String>,
+    val sentFiles: Int,
+    val totalFiles: Int
+) : Packet()
+
 @Serializable
 data class DeveloperUpdatePacket(
     val path: String,
     val text: String
 ) : Packet()
 
+/**
+ * Edits to the developer's file with hash [baseHash]. Receivers whose text has a different hash
+ * answer with [DeveloperTextRequestPacket] and get the full text instead.
+ */
+@Serializable
+data class DeveloperPatchPacket(
+    val path: String,
+    val baseHash: Long,
+    val hash: Long,
+    val edits: List<TextEdit>
+) : Packet()
+
+@Serializable
+data class DeveloperTextRequestPacket(
+    val path: String
+) : Packet()
+
+/**
+ * Hashes of the developer texts a joining user already has. The server only sends the paths
+ * that are missing or have a different hash.
+ */
+@Serializable
+data class UserSyncPacket(
+    val hashes: Map<String, Long>
+) : Packet()
+
 @Serializable
 data class UserCodeUpdatePacket(
     val path: String,
@@ -32,5 +106,50 @@ data class UserCodeUpdatePacket(
 
 @Serializable
 data class CompleteUserCodePacket(
-    val code: MutableMap<String, Map<Int, List<String>>>
+    val code: Map<String, Map<Int, List<String>>>,
+    val sequence: Long = 0
+) : Packet()
+
+/**
+ * Users whose region has the same normalized text.
+ */
+@Serializable
+data class SnippetCluster(val text: String, val connectionIds: List<Int>)
+
+/**
+ * The same as [CompleteUserCodePacket], but every distinct region text is only sent once: for each path
+ * and region index the clusters of users with that text. Blank regions are left out.
+ */
+@Serializable
+data class ClusteredUserCodePacket(
+    val clusters: Map<String, Map<Int, List<SnippetCluster>>>,
+    val sequence: Long
+) : Packet()
+
+/**
+ * Changed regions of one user's code in one file. Regions missing from [regions] are unchanged,
+ * [size] is the new number of regions, 0 means the user's code was removed. Developers apply these in
+ * [sequence] order on top of the last [CompleteUserCodePacket] and ask for a new one with
+ * [UserCodeResyncPacket] on a gap.
+ */
+@Serializable
+data class UserCodeDeltaPacket(
+    val sequence: Long,
+    val path: String,
+    val connectionId: Int,
+    val size: Int,
+    val regions: Map<Int, String>
+) : Packet()
+
+@Serializable
+data class UserCodeResyncPacket(
+    val lastSequence: Long
+) : Packet()
+
+/**
+ * Several packets in one frame, handled as if they were received one after another.
+ */
+@Serializable
+data class PacketBatch(
+    val packets: List<Packet>
 ) : Packet()
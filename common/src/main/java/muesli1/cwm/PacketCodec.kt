@@ -0,0 +1,330 @@
+package muesli1.cwm
+
+import io.ktor.serialization.*
+import io.ktor.websocket.*
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.cbor.Cbor
+import kotlinx.serialization.json.Json
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * WebSocket subprotocol offered by clients that understand [CborPacketCodec].
+ * Servers that do not echo it are talked to with [JsonPacketCodec].
+ */
+const val CBOR_PROTOCOL = "cwm-cbor"
+
+val PACKET_JSON = Json {
+    allowStructuredMapKeys = true
+}
+
+/**
+ * Turns packets into websocket frames and back. Codecs may keep per-connection state,
+ * so every connection needs its own instance and has to encode and decode in order.
+ */
+abstract class PacketCodec {
+    abstract fun encodeString(value: String): Frame
+    abstract fun decodeString(frame: Frame): String
+    abstract fun encodePacket(packet: Packet): Frame
+    abstract fun decodePacket(frame: Frame): Packet
+
+    /**
+     * Like [encodePacket], but reuses what other connections already encoded for the same [broadcast].
+     */
+    open fun encodeBroadcast(broadcast: BroadcastPacket): Frame {
+        return encodePacket(broadcast.packet)
+    }
+
+    /**
+     * Lets broadcasts share path ids with the other connections that use [dictionary].
+     * Has to be called before the first packet is encoded.
+     */
+    open fun shareBroadcastPaths(dictionary: SharedPathDictionary) {
+    }
+}
+
+/**
+ * A packet that is sent to many connections. Codecs cache their encoding in here,
+ * so it is only encoded once no matter how many recipients share it.
+ */
+class BroadcastPacket(val packet: Packet) {
+
+    internal class SharedCborEncoding(val dictionary: SharedPathDictionary, val compressed: Packet, val ids: IntArray, val bytes: ByteArray)
+
+    internal val jsonBytes: ByteArray by lazy {
+        PACKET_JSON.encodeToString(Packet.serializer(), packet).toByteArray(Charsets.UTF_8)
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    internal val cborBytes: ByteArray by lazy {
+        Cbor.encodeToByteArray(BinaryEnvelope.serializer(), BinaryEnvelope(packet = packet))
+    }
+
+    private var sharedCbor: SharedCborEncoding? = null
+    // Dictionary that was full when this packet was encoded for it
+    private var unsharedDictionary: SharedPathDictionary? = null
+
+    /**
+     * Returns null if [dictionary] has no room for the paths of this packet.
+     */
+    @OptIn(ExperimentalSerializationApi::class)
+    @Synchronized
+    internal fun sharedCbor(dictionary: SharedPathDictionary): SharedCborEncoding? {
+        sharedCbor?.let {
+            if (it.dictionary === dictionary) {
+                return it
+            }
+        }
+        if (unsharedDictionary === dictionary) {
+            return null
+        }
+
+        val ids = ArrayList<Int>()
+        var full = false
+        val compressed = packet.mapPaths { path ->
+            val id = dictionary.idOf(path)
+            if (id == null) {
+                full = true
+                ""
+            } else {
+                ids.add(id)
+                id.toString()
+            }
+        }
+        if (full) {
+            unsharedDictionary = dictionary
+            return null
+        }
+        val bytes = Cbor.encodeToByteArray(BinaryEnvelope.serializer(), BinaryEnvelope(emptyMap(), true, compressed))
+        return SharedCborEncoding(dictionary, compressed, ids.toIntArray(), bytes).also { sharedCbor = it }
+    }
+}
+
+fun createPacketCodec(protocol: String?, compressPaths: Boolean): PacketCodec {
+    return if (protocol == CBOR_PROTOCOL) CborPacketCodec(compressPaths) else JsonPacketCodec()
+}
+
+/**
+ * The text format every plugin version understands.
+ */
+class JsonPacketCodec : PacketCodec() {
+
+    override fun encodeString(value: String): Frame {
+        return Frame.Text(PACKET_JSON.encodeToString(String.serializer(), value))
+    }
+
+    override fun decodeString(frame: Frame): String {
+        return PACKET_JSON.decodeFromString(String.serializer(), readText(frame))
+    }
+
+    override fun encodePacket(packet: Packet): Frame {
+        return Frame.Text(PACKET_JSON.encodeToString(Packet.serializer(), packet))
+    }
+
+    override fun decodePacket(frame: Frame): Packet {
+        return PACKET_JSON.decodeFromString(Packet.serializer(), readText(frame))
+    }
+
+    override fun encodeBroadcast(broadcast: BroadcastPacket): Frame {
+        return Frame.Text(true, broadcast.jsonBytes)
+    }
+
+    private fun readText(frame: Frame): String {
+        if (frame !is Frame.Text) {
+            throw WebsocketDeserializeException("Expected text frame, got ${frame.frameType.name}", frame = frame)
+        }
+        return frame.readText()
+    }
+}
+
+/**
+ * Binary frame of [CborPacketCodec]. [paths] defines new path ids before [packet] is decoded.
+ * If [pathIds] is set, every path in [packet] is such an id.
+ */
+@Serializable
+class BinaryEnvelope(
+    val paths: Map<Int, String> = emptyMap(),
+    val pathIds: Boolean = false,
+    val packet: Packet? = null
+)
+
+/**
+ * Assigns small ids to paths. Ids are only ever added, so both sides stay in sync
+ * as long as frames are decoded in the order they were encoded.
+ */
+class PathDictionary {
+    private val ids: MutableMap<String, Int> = HashMap()
+    private val paths: MutableList<String> = ArrayList()
+
+    val isEmpty: Boolean
+        get() = paths.isEmpty()
+
+    /**
+     * Returns the id of [path] and adds it to [newDefinitions] if it was not known yet.
+     */
+    fun idOf(path: String, newDefinitions: MutableMap<Int, String>): Int {
+        return ids.getOrPut(path) {
+            val id = paths.size
+            paths.add(path)
+            newDefinitions[id] = path
+            id
+        }
+    }
+
+    fun define(id: Int, path: String) {
+        while (paths.size <= id) {
+            paths.add("")
+        }
+        paths[id] = path
+        ids[path] = id
+    }
+
+    fun pathOf(id: Int): String {
+        return paths.getOrNull(id) ?: throw IllegalStateException("Unknown path id $id")
+    }
+}
+
+/**
+ * Path ids that many connections agree on, so they can share one encoded frame.
+ * Each connection still sends the definition of an id the first time it uses it.
+ * Ids are never freed, so at most [capacity] paths get one.
+ */
+class SharedPathDictionary(private val capacity: Int = MAX_SHARED_PATHS) {
+    private val ids: MutableMap<String, Int> = ConcurrentHashMap()
+    private val paths: MutableMap<Int, String> = ConcurrentHashMap()
+    private var nextId = 0
+
+    /**
+     * Returns null if [path] has no id yet and the dictionary is full.
+     */
+    fun idOf(path: String): Int? {
+        return ids[path] ?: synchronized(this) {
+            ids[path] ?: if (nextId < capacity) {
+                val id = nextId++
+                paths[id] = path
+                ids[path] = id
+                id
+            } else {
+                null
+            }
+        }
+    }
+
+    fun pathOf(id: Int): String {
+        return paths[id] ?: throw IllegalStateException("Unknown path id $id")
+    }
+}
+
+/**
+ * Compact binary format. With [compressPaths], every path is sent in full only once per connection
+ * and as a small id afterwards. Only use it for directions where frames are encoded in send order.
+ * Connections that use the same [sharedPaths] can share broadcast frames.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+class CborPacketCodec(
+    private val compressPaths: Boolean,
+    private var sharedPaths: SharedPathDictionary? = null
+) : PacketCodec() {
+
+    private val outgoingPaths = PathDictionary()
+    private val incomingPaths = PathDictionary()
+    // Ids of sharedPaths whose definition was sent already
+    private val definedSharedIds = BitSet()
+
+    override fun encodeString(value: String): Frame {
+        return Frame.Binary(true, Cbor.encodeToByteArray(String.serializer(), value))
+    }
+
+    override fun decodeString(frame: Frame): String {
+        return Cbor.decodeFromByteArray(String.serializer(), readBytes(frame))
+    }
+
+    override fun encodePacket(packet: Packet): Frame {
+        if (compressPaths && sharedPaths != null) {
+            return encodeBroadcast(BroadcastPacket(packet))
+        }
+
+        val envelope = if (compressPaths) {
+            val definitions: MutableMap<Int, String> = HashMap()
+            val compressed = packet.mapPaths { outgoingPaths.idOf(it, definitions).toString() }
+            BinaryEnvelope(definitions, true, compressed)
+        } else {
+            BinaryEnvelope(packet = packet)
+        }
+        return Frame.Binary(true, Cbor.encodeToByteArray(BinaryEnvelope.serializer(), envelope))
+    }
+
+    override fun shareBroadcastPaths(dictionary: SharedPathDictionary) {
+        if (!compressPaths) {
+            return
+        }
+        // Ids of both dictionaries would end up in the same dictionary of the receiver
+        check(sharedPaths == null && outgoingPaths.isEmpty) { "Paths were encoded already" }
+        sharedPaths = dictionary
+    }
+
+    override fun encodeBroadcast(broadcast: BroadcastPacket): Frame {
+        val sharedPaths = sharedPaths
+        if (!compressPaths) {
+            return Frame.Binary(true, broadcast.cborBytes)
+        }
+        if (sharedPaths == null) {
+            return encodePacket(broadcast.packet)
+        }
+
+        // Paths that did not get a shared id are sent in full
+        val shared = broadcast.sharedCbor(sharedPaths) ?: return Frame.Binary(true, broadcast.cborBytes)
+        if (shared.ids.all { definedSharedIds[it] }) {
+            return Frame.Binary(true, shared.bytes)
+        }
+
+        // Only this connection needs the definitions, the packet itself is already mapped
+        val definitions: MutableMap<Int, String> = HashMap()
+        shared.ids.filterNot { definedSharedIds[it] }.forEach {
+            definedSharedIds.set(it)
+            definitions[it] = sharedPaths.pathOf(it)
+        }
+        return Frame.Binary(true, Cbor.encodeToByteArray(BinaryEnvelope.serializer(), BinaryEnvelope(definitions, true, shared.compressed)))
+    }
+
+    override fun decodePacket(frame: Frame): Packet {
+        val envelope = Cbor.decodeFromByteArray(BinaryEnvelope.serializer(), readBytes(frame))
+        envelope.paths.forEach { incomingPaths.define(it.key, it.value) }
+
+        val packet = envelope.packet
+            ?: throw WebsocketDeserializeException("Binary frame without packet", frame = frame)
+        if (!envelope.pathIds) {
+            return packet
+        }
+        return packet.mapPaths { incomingPaths.pathOf(it.toInt()) }
+    }
+
+    private fun readBytes(frame: Frame): ByteArray {
+        if (frame !is Frame.Binary) {
+            throw WebsocketDeserializeException("Expected binary frame, got ${frame.frameType.name}", frame = frame)
+        }
+        return frame.readBytes()
+    }
+}
+
+/**
+ * Returns a copy of the packet with every path replaced by [transform].
+ */
+fun Packet.mapPaths(transform: (String) -> String): Packet {
+    return when (this) {
+        is DeveloperInitPacket -> copy(code = code.mapKeysTo(HashMap()) { transform(it.key) })
+        is DeveloperInitBatchPacket -> copy(code = code.mapKeys { transform(it.key) })
+        is DeveloperUpdatePacket -> copy(path = transform(path))
+        is DeveloperPatchPacket -> copy(path = transform(path))
+        is DeveloperTextRequestPacket -> copy(path = transform(path))
+        is UserSyncPacket -> copy(hashes = hashes.mapKeys { transform(it.key) })
+        is UserCodeUpdatePacket -> copy(path = transform(path))
+        is CompleteUserCodePacket -> copy(code = code.mapKeysTo(HashMap()) { transform(it.key) })
+        is ClusteredUserCodePacket -> copy(clusters = clusters.mapKeysTo(HashMap()) { transform(it.key) })
+        is UserCodeDeltaPacket -> copy(path = transform(path))
+        is UserCodeResyncPacket -> this
+        is PacketBatch -> copy(packets = packets.map { it.mapPaths(transform) })
+    }
+}
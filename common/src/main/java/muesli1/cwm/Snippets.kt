@@ -0,0 +1,39 @@
+package muesli1.cwm
+
+/**
+ * Replaces tabs, removes the indentation all lines have in common and trailing empty lines.
+ * Returns null for blank snippets.
+ */
+fun normalizeSnippet(snippet: String): String? {
+    if (snippet.isBlank()) {
+        return null
+    }
+
+    val lines = snippet.replace("\t", "    ").split('\n').dropLastWhile { it.isBlank() }
+    val indentation = lines.filter { it.isNotBlank() }.minOf { line -> line.indexOfFirst { !it.isWhitespace() } }
+    if (indentation == 0 && lines.size == snippet.count { it == '\n' } + 1 && '\t' !in snippet) {
+        return snippet
+    }
+    return lines.joinToString("\n") { if (it.length > indentation) it.substring(indentation) else it.trimStart() }
+}
+
+/**
+ * Groups the regions of every path by their index and text. Blank regions are left out,
+ * the biggest clusters come first.
+ */
+fun clusterUserCode(code: Map<String, Map<Int, List<String>>>): Map<String, Map<Int, List<SnippetCluster>>> {
+    return code.mapValues { (_, users) ->
+        val regions: MutableMap<Int, MutableMap<String, MutableList<Int>>> = HashMap()
+        users.forEach { (connectionId, userRegions) ->
+            userRegions.forEachIndexed { index, region ->
+                if (region.isNotBlank()) {
+                    regions.getOrPut(index) { HashMap() }.getOrPut(region) { ArrayList() }.add(connectionId)
+                }
+            }
+        }
+        regions.mapValues { (_, texts) ->
+            texts.map { SnippetCluster(it.key, it.value.sorted()) }
+                .sortedWith(compareByDescending<SnippetCluster> { it.connectionIds.size }.thenBy { it.text })
+        }
+    }.filterValues { it.isNotEmpty() }
+}
@@ -0,0 +1,61 @@
+package muesli1.cwm
+
+import kotlinx.serialization.Serializable
+
+/**
+ * Replaces [length] chars at [offset] with [text].
+ */
+@Serializable
+data class TextEdit(
+    val offset: Int,
+    val length: Int,
+    val text: String
+)
+
+/**
+ * 64 bit FNV-1a over the chars of [text]. Identifies file versions, not meant to be secure.
+ */
+fun textHash(text: String): Long {
+    var hash = -0x340d631b7bdddcdbL
+    for (c in text) {
+        hash = (hash xor c.code.toLong()) * 0x100000001b3L
+    }
+    return hash
+}
+
+/**
+ * Returns a single edit turning [oldText] into [newText], or null if both are equal.
+ */
+fun createTextEdit(oldText: String, newText: String): TextEdit? {
+    if (oldText == newText) {
+        return null
+    }
+
+    val maxPrefix = minOf(oldText.length, newText.length)
+    var prefix = 0
+    while (prefix < maxPrefix && oldText[prefix] == newText[prefix]) {
+        prefix++
+    }
+
+    val maxSuffix = maxPrefix - prefix
+    var suffix = 0
+    while (suffix < maxSuffix && oldText[oldText.length - 1 - suffix] == newText[newText.length - 1 - suffix]) {
+        suffix++
+    }
+
+    return TextEdit(prefix, oldText.length - prefix - suffix, newText.substring(prefix, newText.length - suffix))
+}
+
+/**
+ * Applies the edits one after another, returns null if one of them is out of range.
+ */
+fun applyTextEdits(text: String, edits: List<TextEdit>): String? {
+    var result = text
+    for (edit in edits) {
+        if (edit.offset < 0 || edit.length < 0 || edit.offset + edit.length > result.length) {
+            return null
+        }
+        result = result.substring(0, edit.offset) + edit.text + result.substring(edit.offset + edit.length)
+    }
+    return result
+}
@@ -0,0 +1,101 @@
+package muesli1.cwm
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class BroadcastPacketTest {
+
+    private val text = (0 until 200).joinToString("\n") { "    int value$it = compute(value${it - 1}); // step $it" }
+
+    private fun packets(round: Int): List<Packet> {
+        return listOf(
+            DeveloperUpdatePacket("src/File${round % 5}.java", text + round),
+            UserCodeDeltaPacket(round.toLong(), "src/File${round % 7}.java", 3, 1, mapOf(0 to "return $round;")),
+            DeveloperTextRequestPacket("src/Other$round.java")
+        )
+    }
+
+    @Test
+    fun testSharedFramesDecode() {
+        val dictionary = SharedPathDictionary()
+        val senders = (0 until 3).map { CborPacketCodec(true, dictionary) }
+        val receivers = senders.map { CborPacketCodec(false) }
+
+        for (round in 0 until 30) {
+            // Connections join late, so they miss definitions the others already got
+            val recipients = senders.indices.filter { it <= round / 10 }
+            for (packet in packets(round)) {
+                val broadcast = BroadcastPacket(packet)
+                val frames = recipients.map { senders[it].encodeBroadcast(broadcast) }
+                recipients.forEachIndexed { index, recipient ->
+                    assertEquals(packet, receivers[recipient].decodePacket(frames[index]))
+                }
+            }
+        }
+
+        // Once every path is known, all recipients get the very same bytes
+        val broadcast = BroadcastPacket(packets(29)[0])
+        val frames = senders.map { it.encodeBroadcast(broadcast) }
+        assertTrue(frames.all { it.data === frames[0].data })
+    }
+
+    @Test
+    fun testFullDictionarySendsPathsInFull() {
+        val dictionary = SharedPathDictionary(2)
+        val sender = CborPacketCodec(true)
+        sender.shareBroadcastPaths(dictionary)
+        val receiver = CborPacketCodec(false)
+
+        for (round in 0 until 10) {
+            val packet = DeveloperTextRequestPacket("src/Other$round.java")
+            assertEquals(packet, receiver.decodePacket(sender.encodeBroadcast(BroadcastPacket(packet))))
+        }
+        assertNull(dictionary.idOf("src/New.java"))
+        assertEquals(0, dictionary.idOf("src/Other0.java"))
+    }
+
+    @Test
+    fun testJsonBroadcast() {
+        val packet = packets(1)[0]
+        val broadcast = BroadcastPacket(packet)
+        val frames = (0 until 3).map { JsonPacketCodec().encodeBroadcast(broadcast) }
+
+        assertTrue(frames.all { it.data === frames[0].data })
+        assertEquals(packet, JsonPacketCodec().decodePacket(frames[0]))
+    }
+
+    @Test
+    fun testMeasureBroadcastCost() {
+        for (recipients in listOf(1, 10, 100, 400)) {
+            val results = listOf(
+                "json" to measure(recipients, { JsonPacketCodec() }, false),
+                "json shared" to measure(recipients, { JsonPacketCodec() }, true),
+                "cbor" to measure(recipients, { CborPacketCodec(true) }, false),
+                "cbor shared" to SharedPathDictionary().let { dictionary ->
+                    measure(recipients, { CborPacketCodec(true, dictionary) }, true)
+                }
+            )
+            println("$recipients recipients: " + results.joinToString(", ") { "${it.first} ${it.second}" })
+        }
+    }
+
+    private fun measure(recipients: Int, codec: () -> PacketCodec, shared: Boolean): String {
+        val codecs = (0 until recipients).map { codec() }
+
+        fun broadcast(round: Int) {
+            val packet = DeveloperUpdatePacket("src/File${round % 5}.java", text + round)
+            if (shared) {
+                val broadcast = BroadcastPacket(packet)
+                codecs.forEach { it.encodeBroadcast(broadcast) }
+            } else {
+                codecs.forEach { it.encodePacket(packet) }
+            }
+        }
+
+        repeat(20) { broadcast(it) }
+        val rounds = 20
+        val start = System.nanoTime()
+        repeat(rounds) { broadcast(it) }
+        return "%.1f us".format((System.nanoTime() - start) / rounds / 1000.0)
+    }
+}
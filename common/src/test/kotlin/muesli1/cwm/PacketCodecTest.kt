@@ -0,0 +1,131 @@
+package muesli1.cwm
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.util.zip.Deflater
+
+class PacketCodecTest {
+
+    private val paths = (0 until 40).map { "src/main/java/de/tudalgo/algoutils/tutor/exercise$it/Solution$it.java" }
+
+    private fun sourceFile(index: Int): String {
+        return (0 until 200).joinToString("\n") {
+            if (it % 20 == 0) "    // <USER CODE>" else "    int value$it = compute(value${it - 1}, $index); // step $it"
+        }
+    }
+
+    private fun realisticPackets(): List<Packet> {
+        val userCode: MutableMap<String, Map<Int, List<String>>> = HashMap()
+        paths.forEach { path ->
+            userCode[path] = (0 until 300).associateWith { user ->
+                listOf("return a + b; // $user", "", "for (int i = 0; i < n; i++) sum += i;")
+            }
+        }
+
+        return listOf(
+            DeveloperInitPacket("Tutorium", paths.withIndex().associateTo(HashMap()) { it.value to sourceFile(it.index) }),
+            DeveloperInitBatchPacket(paths.take(4).associateWith { sourceFile(it.length) }, 4, paths.size),
+            DeveloperUpdatePacket(paths[3], sourceFile(3)),
+            UserSyncPacket(paths.associateWith { textHash(it) }),
+            UserCodeUpdatePacket(paths[7], listOf("return a + b;", "")),
+            UserCodeDeltaPacket(42, paths[7], 17, 2, mapOf(0 to "return a + b;")),
+            CompleteUserCodePacket(userCode, 42),
+            ClusteredUserCodePacket(clusterUserCode(userCode), 42),
+            PacketBatch(listOf(UserCodeUpdatePacket(paths[7], listOf("return a + b;")), DeveloperTextRequestPacket(paths[3])))
+        )
+    }
+
+    @Test
+    fun testRoundTrip() {
+        val codecs = listOf(
+            JsonPacketCodec() to JsonPacketCodec(),
+            CborPacketCodec(false) to CborPacketCodec(false),
+            CborPacketCodec(true) to CborPacketCodec(false)
+        )
+
+        for ((encoder, decoder) in codecs) {
+            assertEquals(NO_PASSWORD, decoder.decodeString(encoder.encodeString(NO_PASSWORD)))
+            // Twice, so the second round uses known path ids
+            repeat(2) {
+                realisticPackets().forEach {
+                    assertEquals(it, decoder.decodePacket(encoder.encodePacket(it)))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testMeasureSizeAndTime() {
+        val packets = realisticPackets()
+
+        for (packet in packets) {
+            val results = listOf(
+                "json" to measure(packet) { JsonPacketCodec() },
+                "cbor" to measure(packet) { CborPacketCodec(false) },
+                "cbor+paths" to measure(packet) { CborPacketCodec(true) }
+            )
+            println(packet::class.simpleName + ": " + results.joinToString(", ") { "${it.first} ${it.second}" })
+        }
+    }
+
+    /**
+     * What permessage-deflate would save on the wire per frame and what it costs,
+     * to pick the compression level and the minimum frame size worth compressing.
+     */
+    @Test
+    fun testMeasureDeflate() {
+        for (packet in realisticPackets()) {
+            val frame = CborPacketCodec(false).encodePacket(packet).data
+            val results = listOf(Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION).map { level ->
+                val deflater = Deflater(level, true)
+                val output = ByteArray(frame.size + 64)
+                var size = 0
+                repeat(20) { size = deflate(deflater, frame, output) }
+
+                val rounds = 50
+                val start = System.nanoTime()
+                repeat(rounds) { deflate(deflater, frame, output) }
+                val nanos = (System.nanoTime() - start) / rounds
+                deflater.end()
+
+                "level $level %d B (%.0f%%), %.1f us".format(size, 100.0 * size / frame.size, nanos / 1000.0)
+            }
+            println(packet::class.simpleName + ": cbor ${frame.size} B, " + results.joinToString(", "))
+        }
+    }
+
+    // Without context takeover, like the first frame of a connection
+    private fun deflate(deflater: Deflater, input: ByteArray, output: ByteArray): Int {
+        deflater.reset()
+        deflater.setInput(input)
+        deflater.finish()
+        var size = 0
+        while (!deflater.finished()) {
+            size += deflater.deflate(output, size, output.size - size)
+        }
+        return size
+    }
+
+    private fun measure(packet: Packet, codec: () -> PacketCodec): String {
+        val encoder = codec()
+        val decoder = codec()
+        // Warm up the dictionary and the JIT, then measure the steady state
+        repeat(20) { decoder.decodePacket(encoder.encodePacket(packet)) }
+
+        val rounds = 50
+        var size = 0
+        var encodeNanos = 0L
+        var decodeNanos = 0L
+        repeat(rounds) {
+            val start = System.nanoTime()
+            val frame = encoder.encodePacket(packet)
+            val encoded = System.nanoTime()
+            decoder.decodePacket(frame.copy())
+            decodeNanos += System.nanoTime() - encoded
+            encodeNanos += encoded - start
+            size = frame.data.size
+        }
+
+        return "%d B, encode %.1f us, decode %.1f us".format(size, encodeNanos / rounds / 1000.0, decodeNanos / rounds / 1000.0)
+    }
+}
@@ -0,0 +1,43 @@
+package muesli1.cwm
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class SnippetsTest {
+
+    @Test
+    fun testNormalizeSnippet() {
+        assertNull(normalizeSnippet(""))
+        assertNull(normalizeSnippet("  \n\t\n"))
+        assertEquals("return a;", normalizeSnippet("        return a;"))
+        assertEquals("if (a) {\n    return b;\n}", normalizeSnippet("\tif (a) {\n\t\treturn b;\n\t}\n\n"))
+        // Blank lines do not count for the indentation
+        assertEquals("a();\n\nb();", normalizeSnippet("    a();\n\n    b();"))
+
+        val normalized = "int x = 1;\n    x++;"
+        assertSame(normalized, normalizeSnippet(normalized))
+    }
+
+    @Test
+    fun testClusterUserCode() {
+        val code = mapOf(
+            "src/A.java" to mapOf(
+                1 to listOf("return a;", "x++;"),
+                2 to listOf("return b;", ""),
+                3 to listOf("return a;", "x++;"),
+                4 to listOf("return a;")
+            ),
+            "src/B.java" to mapOf(5 to listOf(""))
+        )
+
+        assertEquals(
+            mapOf(
+                "src/A.java" to mapOf(
+                    0 to listOf(SnippetCluster("return a;", listOf(1, 3, 4)), SnippetCluster("return b;", listOf(2))),
+                    1 to listOf(SnippetCluster("x++;", listOf(1, 3)))
+                )
+            ),
+            clusterUserCode(code)
+        )
+    }
+}
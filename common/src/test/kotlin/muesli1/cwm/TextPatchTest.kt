@@ -0,0 +1,36 @@
+package muesli1.cwm
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class TextPatchTest {
+
+    @Test
+    fun testEditRoundTrip() {
+        val random = Random(5)
+        var text = "class Main {\n    // <USER CODE>\n    // </USER CODE>\n}\n"
+
+        repeat(1000) {
+            val offset = random.nextInt(text.length + 1)
+            val length = random.nextInt(text.length - offset + 1).coerceAtMost(5)
+            val changed = text.substring(0, offset) + "x".repeat(random.nextInt(4)) + text.substring(offset + length)
+
+            val edit = createTextEdit(text, changed)
+            if (text == changed) {
+                assertNull(edit)
+            } else {
+                assertEquals(changed, applyTextEdits(text, listOf(edit!!)))
+                assertNotEquals(textHash(text), textHash(changed))
+            }
+            text = changed
+        }
+    }
+
+    @Test
+    fun testInvalidEdit() {
+        assertNull(applyTextEdits("abc", listOf(TextEdit(2, 5, "x"))))
+        assertNull(applyTextEdits("abc", listOf(TextEdit(-1, 0, "x"))))
+        assertEquals("axc", applyTextEdits("abc", listOf(TextEdit(1, 1, "x"))))
+    }
+}
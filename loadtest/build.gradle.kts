@@ -0,0 +1,22 @@
+val ktor_version: String by project
+val logback_version: String by project
+
+plugins {
+    application
+}
+
+application {
+    mainClass.set("muesli1.cwm.LoadTestKt")
+    applicationDefaultJvmArgs = listOf("-Xmx4g")
+}
+
+dependencies {
+    implementation(project(":common"))
+    implementation(project(":client"))
+    implementation(project(":server"))
+
+    implementation("io.ktor:ktor-server-core-jvm:$ktor_version")
+    implementation("io.ktor:ktor-server-netty-jvm:$ktor_version")
+    implementation("io.ktor:ktor-client-core:$ktor_version")
+    implementation("ch.qos.logback:logback-classic:$logback_version")
+}
@@ -0,0 +1,364 @@
+package muesli1.cwm
+
+import ch.qos.logback.classic.Level
+import io.ktor.server.application.*
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import kotlinx.coroutines.*
+import org.slf4j.LoggerFactory
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.UUID
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+
+/*
+ * Simulates a lecture on localhost: an in-process server, developers typing in their project files
+ * and users typing into their user code regions. Everything runs in one JVM, so the send time
+ * can be put directly into the packets and compared with System.nanoTime() on arrival.
+ *
+ * Arguments are key=value pairs, e.g. users=400 developers=2 rooms=2 duration=60
+ *
+ * With nodes=3 three servers on consecutive ports share their rooms over a backplane, like nodes
+ * behind a load balancer. Developers connect to the first node, users are spread over all of them.
+ */
+
+private const val LOCALHOST = "127.0.0.1"
+private const val SENT_MARKER = "// sent "
+private const val INIT_BATCH_FILES = 8
+
+private class LoadTestOptions(args: Array<String>) {
+    private val values = args.associate {
+        val split = it.split("=", limit = 2)
+        require(split.size == 2) { "Expected key=value, got '$it'" }
+        split[0] to split[1]
+    }
+
+    val users = int("users", 300)
+    val developers = int("developers", 1)
+    // Developers and users are spread evenly over the rooms
+    val rooms = int("rooms", 1)
+    val files = int("files", 20)
+    val durationSeconds = int("duration", 30)
+    val warmupSeconds = int("warmup", 5)
+    // Packets per second and connection
+    val developerRate = double("developerRate", 8.0)
+    val userRate = double("userRate", 0.5)
+    val port = int("port", 18080)
+    val binary = values["binary"]?.toBoolean() ?: true
+    val nodes = int("nodes", 1)
+    // tcp runs a TcpBackplaneHub on the port after the nodes, memory an InProcessBus
+    val backplane = values["backplane"] ?: "tcp"
+
+    private fun int(key: String, default: Int) = values[key]?.toInt() ?: default
+    private fun double(key: String, default: Double) = values[key]?.toDouble() ?: default
+}
+
+/**
+ * Collects latencies without locking. Samples beyond the capacity are only counted.
+ */
+private class LatencyRecorder(capacity: Int) {
+    private val samples = LongArray(capacity)
+    private val size = AtomicInteger(0)
+    private val overflow = AtomicLong(0)
+
+    @Volatile
+    var recording = false
+
+    fun record(nanos: Long) {
+        if (!recording) {
+            return
+        }
+        val index = size.getAndIncrement()
+        if (index < samples.size) {
+            samples[index] = nanos
+        } else {
+            overflow.incrementAndGet()
+        }
+    }
+
+    val count: Long
+        get() = size.get().coerceAtMost(samples.size) + overflow.get()
+
+    fun report(name: String, seconds: Double): String {
+        val sorted = samples.copyOf(size.get().coerceAtMost(samples.size))
+        sorted.sort()
+        if (sorted.isEmpty()) {
+            return "$name: no deliveries"
+        }
+
+        fun percentile(p: Double) = sorted[((sorted.size - 1) * p).toInt()] / 1_000_000.0
+
+        return "%s: %d deliveries (%.0f/s), p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms".format(
+            name, count, count / seconds, percentile(0.5), percentile(0.99), percentile(0.999), percentile(1.0)
+        )
+    }
+}
+
+private fun parseSent(text: String): Long? {
+    val start = text.indexOf(SENT_MARKER)
+    if (start < 0) {
+        return null
+    }
+    val end = text.indexOf('\n', start).let { if (it < 0) text.length else it }
+    return text.substring(start + SENT_MARKER.length, end).toLongOrNull()
+}
+
+private fun roomName(index: Int) = "LoadTest$index"
+
+private fun filePath(index: Int) = "loadtest/src/muesli1/cwm/File$index.java"
+
+private fun fileText(index: Int, typed: String, sent: Long): String {
+    return "$SENT_MARKER$sent\nclass File$index {\n    // <USER CODE>\n    // </USER CODE>\n    void run() {\n        $typed\n    }\n}\n"
+}
+
+private class SimulatedDeveloper(
+    val options: LoadTestOptions,
+    val room: String,
+    val files: List<Int>,
+    val latency: LatencyRecorder,
+    val connected: CountDownLatch
+) : ClientReceiver() {
+    val app = ClientApplication(null, options.binary, LOCALHOST, options.port)
+    val texts: MutableMap<String, String> = files.associateTo(HashMap()) { filePath(it) to fileText(it, "", 0) }
+    val sent = AtomicLong(0)
+
+    override fun closed(reason: String?, exceptionReason: String?, connecting: Boolean) {
+        if (connecting) {
+            println("Developer connection closed: $reason $exceptionReason")
+        }
+    }
+
+    override fun received(packet: Packet) {
+        when (packet) {
+            is UserCodeDeltaPacket -> packet.regions.values.forEach { region ->
+                parseSent(region)?.let { latency.record(System.nanoTime() - it) }
+            }
+
+            is DeveloperTextRequestPacket -> synchronized(texts) { texts[packet.path] }?.let {
+                app.sendUnsafe(DeveloperUpdatePacket(packet.path, it))
+            }
+
+            else -> {}
+        }
+    }
+
+    override fun createDeveloperData(): DeveloperInitPacket {
+        return DeveloperInitPacket(room, HashMap())
+    }
+
+    override fun createDeveloperBatches(): Iterator<DeveloperInitBatchPacket> {
+        val files = synchronized(texts) { texts.toList() }
+        var sent = 0
+        return files.chunked(INIT_BATCH_FILES).map { batch ->
+            sent += batch.size
+            DeveloperInitBatchPacket(batch.toMap(), sent, files.size)
+        }.iterator()
+    }
+
+    override fun createUserSyncData(): UserSyncPacket {
+        throw IllegalStateException("Developers do not send sync data")
+    }
+
+    override fun connectedSession() {
+        connected.countDown()
+    }
+
+    fun type(random: Random) {
+        val file = files[random.nextInt(files.size)]
+        val path = filePath(file)
+        val now = System.nanoTime()
+
+        val text = synchronized(texts) {
+            // Grow a line like someone typing, start over once it gets long
+            val typed = texts[path]!!.substringAfter("        ").substringBefore('\n')
+            val next = if (typed.length > 80) "" else typed + ('a' + random.nextInt(26))
+            fileText(file, next, now).also { texts[path] = it }
+        }
+
+        if (app.sendUnsafe(DeveloperUpdatePacket(path, text)) != SendResult.DROPPED) {
+            sent.incrementAndGet()
+        }
+    }
+}
+
+private class SimulatedUser(
+    val options: LoadTestOptions,
+    room: String,
+    port: Int,
+    val latency: LatencyRecorder,
+    val connected: CountDownLatch
+) : ClientReceiver() {
+    val app = ClientApplication(room, options.binary, LOCALHOST, port, UUID.randomUUID().toString())
+    val sent = AtomicLong(0)
+
+    override fun closed(reason: String?, exceptionReason: String?, connecting: Boolean) {
+        if (connecting) {
+            println("User connection closed: $reason $exceptionReason")
+        }
+    }
+
+    override fun received(packet: Packet) {
+        if (packet is DeveloperUpdatePacket) {
+            parseSent(packet.text)?.takeIf { it != 0L }?.let { latency.record(System.nanoTime() - it) }
+        }
+    }
+
+    override fun createDeveloperData(): DeveloperInitPacket {
+        throw IllegalStateException("Users do not send init data")
+    }
+
+    override fun createUserSyncData(): UserSyncPacket {
+        return UserSyncPacket(emptyMap())
+    }
+
+    override fun connectedSession() {
+        connected.countDown()
+    }
+
+    fun type(random: Random) {
+        val path = filePath(random.nextInt(options.files))
+        val code = listOf("        return ${random.nextInt(1000)}; $SENT_MARKER${System.nanoTime()}")
+        if (app.sendUnsafe(UserCodeUpdatePacket(path, code)) != SendResult.DROPPED) {
+            sent.incrementAndGet()
+        }
+    }
+}
+
+private fun usedHeap(): Long {
+    val runtime = Runtime.getRuntime()
+    return runtime.totalMemory() - runtime.freeMemory()
+}
+
+private fun processCpuNanos(): Long {
+    val bean = ManagementFactory.getOperatingSystemMXBean()
+    return (bean as? com.sun.management.OperatingSystemMXBean)?.processCpuTime ?: -1
+}
+
+// Everything runs over loopback, so its counter is the traffic on the wire (Linux only)
+private fun loopbackBytes(): Long {
+    val counter = Paths.get("/sys/class/net/lo/statistics/tx_bytes")
+    return if (Files.isReadable(counter)) Files.readAllLines(counter).first().trim().toLong() else -1
+}
+
+private fun CoroutineScope.typeRepeatedly(rate: Double, seed: Int, type: (Random) -> Unit) {
+    if (rate <= 0.0) {
+        return
+    }
+    launch {
+        val random = Random(seed)
+        // Spread the connections so they do not all fire in the same millisecond
+        delay(random.nextLong((1000 / rate).toLong() + 1))
+        while (isActive) {
+            type(random)
+            // Exponential pauses, typing comes in bursts
+            val pause = -Math.log(1.0 - random.nextDouble()) / rate * 1000
+            delay(pause.toLong().coerceAtLeast(1))
+        }
+    }
+}
+
+fun main(args: Array<String>) {
+    val options = LoadTestOptions(args)
+    System.setProperty("cwm.developerPassword", System.getenv("DEVELOPER_PASSWORD") ?: "loadtest")
+    (LoggerFactory.getLogger("ktor.application") as ch.qos.logback.classic.Logger).level = Level.WARN
+
+    val backplaneSecret = UUID.randomUUID().toString()
+    val hub = if (options.nodes > 1 && options.backplane == "tcp") TcpBackplaneHub(options.port + options.nodes, backplaneSecret, LOCALHOST) else null
+    val bus = InProcessBus()
+    val servers = (0 until options.nodes).map { node ->
+        val backplane = when {
+            options.nodes == 1 -> null
+            hub != null -> TcpBackplane(LOCALHOST, hub.port, backplaneSecret)
+            else -> bus.join()
+        }
+        embeddedServer(Netty, port = options.port + node, host = LOCALHOST) { module(backplane) }.start(wait = false)
+    }
+
+    val userLatency = LatencyRecorder(8_000_000)
+    val developerLatency = LatencyRecorder(2_000_000)
+    val connected = CountDownLatch(options.users + options.developers)
+
+    val developers = (0 until options.developers).map { d ->
+        SimulatedDeveloper(options, roomName(d % options.rooms), (0 until options.files).filter { it % options.developers == d }, developerLatency, connected)
+    }
+    val users = (0 until options.users).map {
+        SimulatedUser(options, roomName(it % options.rooms), options.port + it % options.nodes, userLatency, connected)
+    }
+
+    developers.forEach { it.app.connect(REAL_PASSWORD, it) }
+    // Users can only join rooms a developer created, others retry after 5 seconds
+    val developersDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30)
+    while (connected.count > options.users && System.nanoTime() < developersDeadline) {
+        Thread.sleep(10)
+    }
+    users.forEach { it.app.connect(null, it) }
+
+    if (!connected.await(60, TimeUnit.SECONDS)) {
+        println("Only ${options.users + options.developers - connected.count} connections after 60 seconds")
+    }
+    println("Connected ${options.users} users and ${options.developers} developers, warming up for ${options.warmupSeconds}s")
+
+    runBlocking {
+        val traffic = CoroutineScope(Dispatchers.Default + SupervisorJob())
+        developers.forEachIndexed { i, developer -> traffic.typeRepeatedly(options.developerRate, i, developer::type) }
+        users.forEachIndexed { i, user -> traffic.typeRepeatedly(options.userRate, 10_000 + i, user::type) }
+
+        delay(options.warmupSeconds * 1000L)
+
+        val sentBefore = developers.sumOf { it.sent.get() } + users.sumOf { it.sent.get() }
+        userLatency.recording = true
+        developerLatency.recording = true
+        val start = System.nanoTime()
+        val cpuBefore = processCpuNanos()
+        val bytesBefore = loopbackBytes()
+
+        var maxHeap = 0L
+        val end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds.toLong())
+        while (System.nanoTime() < end) {
+            maxHeap = maxOf(maxHeap, usedHeap())
+            delay(250)
+        }
+
+        userLatency.recording = false
+        developerLatency.recording = false
+        val seconds = (System.nanoTime() - start) / 1e9
+        val cpuSeconds = (processCpuNanos() - cpuBefore) / 1e9
+        val bytes = loopbackBytes() - bytesBefore
+        val sent = developers.sumOf { it.sent.get() } + users.sumOf { it.sent.get() } - sentBefore
+
+        traffic.cancel()
+        System.gc()
+        val heapAfterGc = usedHeap()
+
+        println()
+        val nodes = if (options.nodes > 1) " on ${options.nodes} nodes (${options.backplane} backplane)" else ""
+        println("Load test with ${options.users} users, ${options.developers} developers in ${options.rooms} rooms$nodes, ${options.files} files, " +
+                "${if (options.binary) "CBOR" else "JSON"} codec, %.1fs".format(seconds))
+        println("Sent: $sent packets (%.0f/s)".format(sent / seconds))
+        println(userLatency.report("Developer -> users", seconds))
+        println(developerLatency.report("Users -> developers", seconds))
+        println("Heap: max %.1f MB, %.1f MB after GC (server and simulated clients)".format(
+            maxHeap / 1048576.0, heapAfterGc / 1048576.0
+        ))
+        println("CPU: %.2f cores busy (server and simulated clients)".format(cpuSeconds / seconds))
+        if (bytesBefore >= 0) {
+            println("Loopback traffic: %.1f MB (%.2f MB/s)".format(bytes / 1048576.0, bytes / 1048576.0 / seconds))
+        }
+        println(
+            "Outbound: ${OutboundMetrics.dropped.get()} dropped, ${OutboundMetrics.resyncs.get()} resyncs, " +
+                    "${OutboundMetrics.disconnected.get()} disconnects"
+        )
+        if (options.nodes > 1) {
+            println("Backplane: ${ServerMetrics.backplaneOut.sum()} messages published, ${ServerMetrics.backplaneIn.sum()} delivered")
+        }
+    }
+
+    (developers.map { it.app } + users.map { it.app }).forEach { it.close() }
+    servers.forEach { it.stop(1000, 2000) }
+    hub?.close()
+}
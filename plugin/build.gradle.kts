@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.12.0"
+    id("me.champeau.jmh") version "0.7.0"
 }
 // Configure Gradle IntelliJ Plugin
 // Read more: https://plugins.jetbrains.com/docs/intellij/tools-gradle-intellij-plugin.html
@@ -15,6 +16,13 @@ java {
     sourceCompatibility = JavaVersion.VERSION_11
 }
 
+// Benchmarks of the text pipeline, run with ./gradlew plugin:jmh
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+}
+
 repositories {
     mavenCentral()
 }
@@ -66,5 +74,7 @@ dependencies {
         exclude("org.slf4j")
     }
 
+    testImplementation("junit:junit:4.13.2")
+
     // implementation(kotlin("stdlib"))
 }
@@ -0,0 +1,77 @@
+package muesli1.cwm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the plugin code that runs on every PSI change and on every live update.
+ * Run with {@code ./gradlew plugin:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextPipelineBenchmark {
+
+    // Files need three lines per region, smaller files are grown to fit all regions
+    @Param({"50", "500", "5000", "20000"})
+    public int lines;
+
+    @Param({"1", "10", "50"})
+    public int regions;
+
+    private String expectedText;
+    private String currentText;
+    private String snippet;
+
+    @Setup
+    public void setup() {
+        expectedText = createFile(false);
+        currentText = createFile(true);
+        snippet = createSnippet(0);
+    }
+
+    private String createFile(boolean withUserCode) {
+        final int totalLines = Math.max(lines, regions * 3);
+        final int spacing = totalLines / regions;
+        final StringBuilder builder = new StringBuilder();
+
+        int line = 0;
+        for(int region = 0; region < regions; region++) {
+            final int regionStart = region * spacing + spacing / 2;
+            while(line < regionStart - 1) {
+                builder.append("        int value").append(line).append(" = compute(value, ").append(line).append(");\n");
+                line++;
+            }
+            builder.append("        // <USER CODE>\n");
+            if(withUserCode) {
+                builder.append(createSnippet(region)).append("\n");
+            }
+            builder.append("        // </USER CODE>\n");
+            line += 2;
+        }
+        while(line < totalLines) {
+            builder.append("    }\n");
+            line++;
+        }
+
+        return builder.toString();
+    }
+
+    private static String createSnippet(int seed) {
+        return "        for(int i = 0; i < n; i++) {\n" +
+                "\t\t\tsum += values[i] * " + seed + ";\n" +
+                "        }\n" +
+                "        return sum;";
+    }
+
+    @Benchmark
+    public TextMergeResult mergeTexts() {
+        return TextMergeResult.mergeTexts(currentText, expectedText);
+    }
+
+    @Benchmark
+    public String mapSnippet() {
+        return UserCodeSnippets.mapSnippet(snippet);
+    }
+}
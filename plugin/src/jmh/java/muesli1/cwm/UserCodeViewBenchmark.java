@@ -0,0 +1,86 @@
+package muesli1.cwm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the user code view does for every render, against projects with many paths.
+ * Run with {@code ./gradlew plugin:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserCodeViewBenchmark {
+
+    private static final String EXERCISE_PATH = "src/main/java/exercise/Exercise.java";
+    private static final String FILTER = "Exercise.java";
+    private static final int USERS = 300;
+
+    @Param({"100", "1000", "5000"})
+    public int paths;
+
+    @Param({"1", "10", "50"})
+    public int regions;
+
+    private UserCodeIndex index;
+    private List<String> changedUserCode;
+
+    @Setup
+    public void setup() {
+        final Map<String, Map<Integer, List<String>>> code = new HashMap<>();
+
+        // Every user typed every region of the exercise, a few of them also have code in other files
+        final Map<Integer, List<String>> exercise = new HashMap<>();
+        for(int user = 0; user < USERS; user++) {
+            final List<String> userCode = new ArrayList<>();
+            for(int region = 0; region < regions; region++) {
+                userCode.add(user % 10 == 0? "" : createSnippet(user % 20));
+            }
+            exercise.put(user, userCode);
+        }
+        code.put(EXERCISE_PATH, exercise);
+
+        for(int path = 0; path < paths - 1; path++) {
+            final int user = path % USERS;
+            code.put("src/main/java/package" + (path % 50) + "/File" + path + ".java",
+                    Collections.singletonMap(user, Collections.singletonList(createSnippet(path))));
+        }
+
+        index = new UserCodeIndex();
+        index.reset(code);
+        changedUserCode = Collections.singletonList(createSnippet(-1));
+    }
+
+    private static String createSnippet(int seed) {
+        return "        for(int i = 0; i < n; i++) {\n" +
+                "\t\t\tsum += values[i] * " + seed + ";\n" +
+                "        }\n" +
+                "        return sum;";
+    }
+
+    @Benchmark
+    public List<String> resolveFilter() {
+        return index.resolve(FILTER);
+    }
+
+    // A user uploads a file nobody had before, so the next render has to scan all paths again
+    @Benchmark
+    public List<String> resolveAfterNewPath() {
+        index.update("src/main/java/extra/Extra.java", 0, null, changedUserCode);
+        final List<String> resolved = index.resolve(FILTER);
+        index.update("src/main/java/extra/Extra.java", 0, changedUserCode, null);
+        return resolved;
+    }
+
+    @Benchmark
+    public String renderView() {
+        final List<String> possibleFiles = index.resolve(FILTER);
+        return UserCodeSnippets.assemble(index.collect(possibleFiles.get(0), regions / 2));
+    }
+}
@@ -1,5 +1,6 @@
 package muesli1.cwm;
 
+import com.intellij.ui.JBIntSpinner;
 import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.components.JBPasswordField;
@@ -16,11 +17,15 @@ public class AppSettingsComponent {
     private final JPanel myMainPanel;
     private final JBPasswordField myPasswordText = new JBPasswordField();
     private final JBCheckBox myDeveloperStatus = new JBCheckBox("Developer ");
+    private final JBIntSpinner myUploadDebounce = new JBIntSpinner(50, 0, 5000);
+    private final JBIntSpinner myUploadMaxLatency = new JBIntSpinner(250, 0, 10000);
 
     public AppSettingsComponent() {
         myMainPanel = FormBuilder.createFormBuilder()
                 .addLabeledComponent(new JBLabel("Enter password: "), myPasswordText, 1, false)
                 .addComponent(myDeveloperStatus, 1)
+                .addLabeledComponent(new JBLabel("Upload debounce (ms): "), myUploadDebounce, 1, false)
+                .addLabeledComponent(new JBLabel("Upload max latency (ms): "), myUploadMaxLatency, 1, false)
                 .addComponentFillVertically(new JPanel(), 0)
                 .getPanel();
     }
@@ -50,4 +55,20 @@ public class AppSettingsComponent {
         myDeveloperStatus.setSelected(newStatus);
     }
 
+    public int getUploadDebounce() {
+        return myUploadDebounce.getNumber();
+    }
+
+    public void setUploadDebounce(int millis) {
+        myUploadDebounce.setNumber(millis);
+    }
+
+    public int getUploadMaxLatency() {
+        return myUploadMaxLatency.getNumber();
+    }
+
+    public void setUploadMaxLatency(int millis) {
+        myUploadMaxLatency.setNumber(millis);
+    }
+
 }
\ No newline at end of file
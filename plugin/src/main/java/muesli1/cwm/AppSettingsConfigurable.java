@@ -39,6 +39,8 @@ public class AppSettingsConfigurable implements Configurable {
         AppSettingsState settings = AppSettingsState.getInstance();
         boolean modified = !mySettingsComponent.getPasswordText().equals(settings.prefix);
         modified |= mySettingsComponent.getDeveloperStatus() != settings.developer;
+        modified |= mySettingsComponent.getUploadDebounce() != settings.uploadDebounceMillis;
+        modified |= mySettingsComponent.getUploadMaxLatency() != settings.uploadMaxLatencyMillis;
         return modified;
     }
 
@@ -47,6 +49,8 @@ public class AppSettingsConfigurable implements Configurable {
         AppSettingsState settings = AppSettingsState.getInstance();
         settings.prefix = mySettingsComponent.getPasswordText();
         settings.developer = mySettingsComponent.getDeveloperStatus();
+        settings.uploadDebounceMillis = mySettingsComponent.getUploadDebounce();
+        settings.uploadMaxLatencyMillis = mySettingsComponent.getUploadMaxLatency();
     }
 
     @Override
@@ -54,6 +58,8 @@ public class AppSettingsConfigurable implements Configurable {
         AppSettingsState settings = AppSettingsState.getInstance();
         mySettingsComponent.setPasswordText(settings.prefix);
         mySettingsComponent.setDeveloperStatus(settings.developer);
+        mySettingsComponent.setUploadDebounce(settings.uploadDebounceMillis);
+        mySettingsComponent.setUploadMaxLatency(settings.uploadMaxLatencyMillis);
     }
 
     @Override
@@ -8,6 +8,8 @@ import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.UUID;
+
 /**
  * Supports storing the application settings in a persistent way.
  * The {@link State} and {@link Storage} annotations define the name of the data and the file name where
@@ -21,11 +23,23 @@ public class AppSettingsState implements PersistentStateComponent<AppSettingsSta
 
     public String prefix = "PWD";
     public boolean developer = false;
+    public int uploadDebounceMillis = 50;
+    public int uploadMaxLatencyMillis = 250;
+    // Generated once, lets the server recognize this installation across reconnects
+    public String clientId = "";
 
     public static AppSettingsState getInstance() {
     return ApplicationManager.getApplication().getService(AppSettingsState.class);
     }
 
+    @NotNull
+    public String getClientId() {
+        if(clientId == null || clientId.isEmpty()) {
+            clientId = UUID.randomUUID().toString();
+        }
+        return clientId;
+    }
+
     @Nullable
     @Override
     public AppSettingsState getState() {
@@ -0,0 +1,122 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Reads the developer's files in parallel and hands them out in batches of about {@link #MAX_BATCH_BYTES},
+ * so connecting with a big project neither holds all texts in memory nor builds one huge packet.
+ * The files of the next batch are read while the current one is sent.
+ */
+class DeveloperInitStream implements Iterator<DeveloperInitBatchPacket> {
+
+    public static final long MAX_BATCH_BYTES = 512 * 1024;
+    public static final int MAX_BATCH_FILES = 256;
+
+    interface FileReader {
+        @NotNull
+        String read(@NotNull Path file) throws IOException;
+    }
+
+    private static final class Read {
+        private final String path;
+        private final CompletableFuture<String> text;
+
+        private Read(String path, CompletableFuture<String> text) {
+            this.path = path;
+            this.text = text;
+        }
+    }
+
+    @NotNull
+    private final List<Path> files;
+    @NotNull
+    private final Function<Path, String> pathNames;
+    @NotNull
+    private final FileReader reader;
+    @NotNull
+    private final Executor executor;
+
+    // First file that is not read yet
+    private int nextFile = 0;
+    private int sentFiles = 0;
+    @NotNull
+    private List<Read> ahead;
+
+    public DeveloperInitStream(@NotNull List<Path> files, @NotNull Function<Path, String> pathNames,
+                               @NotNull FileReader reader, @NotNull Executor executor) {
+        this.files = files;
+        this.pathNames = pathNames;
+        this.reader = reader;
+        this.executor = executor;
+        this.ahead = readBatch();
+    }
+
+    @NotNull
+    private List<Read> readBatch() {
+        final List<Read> batch = new ArrayList<>();
+        long bytes = 0;
+
+        while(nextFile < files.size() && batch.size() < MAX_BATCH_FILES && (batch.isEmpty() || bytes < MAX_BATCH_BYTES)) {
+            final Path file = files.get(nextFile++);
+            try {
+                bytes += Files.size(file);
+            }
+            catch(IOException ignored) {
+                // Reading it fails as well and reports the error
+            }
+
+            batch.add(new Read(pathNames.apply(file), CompletableFuture.supplyAsync(() -> {
+                try {
+                    return reader.read(file);
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor)));
+        }
+
+        return batch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !ahead.isEmpty();
+    }
+
+    /**
+     * Blocks until the files of the batch are read. Throws if one of them could not be read.
+     */
+    @Override
+    public DeveloperInitBatchPacket next() {
+        if(ahead.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        final List<Read> current = ahead;
+        ahead = readBatch();
+
+        final Map<String, String> code = new HashMap<>();
+        for(Read read : current) {
+            try {
+                code.put(read.path, read.text.join());
+            }
+            catch(CompletionException e) {
+                ahead.forEach(it -> it.text.cancel(false));
+                ahead = Collections.emptyList();
+                throw e.getCause() instanceof RuntimeException? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        sentFiles += current.size();
+        return new DeveloperInitBatchPacket(code, sentFiles, files.size());
+    }
+}
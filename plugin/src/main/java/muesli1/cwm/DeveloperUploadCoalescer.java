@@ -0,0 +1,101 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects developer texts per path and only uploads the latest one.
+ * A text is uploaded once no newer one arrived for the debounce window,
+ * but never later than the max latency after the first pending change.
+ */
+class DeveloperUploadCoalescer {
+
+    private static class Pending {
+        private final long firstNanos;
+        private String text;
+        private ScheduledFuture<?> future;
+
+        private Pending(long firstNanos, String text) {
+            this.firstNanos = firstNanos;
+            this.text = text;
+        }
+    }
+
+    @NotNull
+    private final ScheduledExecutorService executor;
+    @NotNull
+    private final BiConsumer<Path, String> upload;
+    private final long debounceNanos;
+    private final long maxLatencyNanos;
+
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Object pendingMonitor = new Object();
+    private final AtomicLong collapsedEvents = new AtomicLong();
+
+    public DeveloperUploadCoalescer(@NotNull ScheduledExecutorService executor, @NotNull BiConsumer<Path, String> upload,
+                                    long debounceMillis, long maxLatencyMillis) {
+        this.executor = executor;
+        this.upload = upload;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxLatencyMillis));
+    }
+
+    public void submit(@NotNull Path path, @NotNull String text) {
+        final long now = System.nanoTime();
+
+        synchronized(pendingMonitor) {
+            Pending current = pending.get(path);
+            if(current == null) {
+                current = new Pending(now, text);
+                pending.put(path, current);
+            }
+            else {
+                current.text = text;
+                current.future.cancel(false);
+                collapsedEvents.incrementAndGet();
+            }
+
+            final long delay = Math.max(0, Math.min(debounceNanos, current.firstNanos + maxLatencyNanos - now));
+            final Pending scheduled = current;
+            current.future = executor.schedule(() -> flush(path, scheduled), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush(@NotNull Path path, @NotNull Pending expected) {
+        final String text;
+        synchronized(pendingMonitor) {
+            if(pending.get(path) != expected) {
+                // Already uploaded by an earlier run
+                return;
+            }
+            pending.remove(path);
+            text = expected.text;
+        }
+
+        upload.accept(path, text);
+    }
+
+    public void cancel() {
+        synchronized(pendingMonitor) {
+            for(Pending p : pending.values()) {
+                p.future.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Number of changes that were replaced by a newer text before being uploaded.
+     */
+    public long getCollapsedEventCount() {
+        return collapsedEvents.get();
+    }
+}
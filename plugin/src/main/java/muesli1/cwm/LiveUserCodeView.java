@@ -0,0 +1,125 @@
+package muesli1.cwm;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps an opened user code document up to date. Changes of the user code only schedule a render,
+ * which runs on the shared application scheduler at most once per frame and only writes the
+ * document if the text is different. Stops once the document is closed.
+ */
+public class LiveUserCodeView implements UserCodeListener, Disposable {
+
+    public static final int FRAME_MILLIS = 16;
+    private static final String LIVE_HEADER = "LIVE";
+
+    @NotNull
+    private final Project project;
+    @NotNull
+    private final ProjectUserData userData;
+    @NotNull
+    private final String fileName;
+    private final int userCodeIndex;
+    @NotNull
+    private final Document document;
+    @NotNull
+    private final PsiFile textFile;
+    @NotNull
+    private final VirtualFile virtualFile;
+
+    private final AtomicBoolean renderScheduled = new AtomicBoolean(false);
+    private volatile boolean disposed = false;
+    private volatile long lastRenderNanos = 0;
+    // Guarded by this
+    private String lastText = null;
+
+    public LiveUserCodeView(@NotNull Project project, @NotNull ProjectUserData userData, @NotNull String fileName, int userCodeIndex,
+                            @NotNull Document document, @NotNull PsiFile textFile, @NotNull VirtualFile virtualFile) {
+        this.project = project;
+        this.userData = userData;
+        this.fileName = fileName;
+        this.userCodeIndex = userCodeIndex;
+        this.document = document;
+        this.textFile = textFile;
+        this.virtualFile = virtualFile;
+    }
+
+    public void start() {
+        Disposer.register(project, this);
+        project.getMessageBus().connect(this).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerListener() {
+            @Override
+            public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+                if(file.equals(virtualFile)) {
+                    Disposer.dispose(LiveUserCodeView.this);
+                }
+            }
+        });
+        userData.addUserCodeListener(this, this);
+        scheduleRender();
+    }
+
+    @Override
+    public void userCodeChanged(@Nullable String path, @Nullable Set<Integer> regionIndices) {
+        if(path != null && !UserCodeIndex.matches(path, fileName)) {
+            return;
+        }
+        if(regionIndices != null && !regionIndices.contains(userCodeIndex)) {
+            return;
+        }
+        scheduleRender();
+    }
+
+    private void scheduleRender() {
+        if(disposed || !renderScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final long sinceLastRender = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRenderNanos);
+        AppExecutorUtil.getAppScheduledExecutorService()
+                .schedule(this::render, Math.max(0, FRAME_MILLIS - sinceLastRender), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void render() {
+        // Changes from now on need another frame
+        renderScheduled.set(false);
+        lastRenderNanos = System.nanoTime();
+
+        final Application application = ApplicationManager.getApplication();
+        if(disposed || application == null || application.isDisposed()) {
+            return;
+        }
+
+        final String text = LIVE_HEADER + "\n" + PopupDialogAction.getText(userData, fileName, userCodeIndex);
+        if(text.equals(lastText)) {
+            return;
+        }
+        lastText = text;
+
+        application.invokeLaterOnWriteThread(() -> {
+            application.runWriteAction(() -> {
+                if(!disposed && document.isWritable() && textFile.isValid()) {
+                    document.setText(text);
+                }
+            });
+        });
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+    }
+}
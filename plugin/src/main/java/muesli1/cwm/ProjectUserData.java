@@ -2,34 +2,51 @@ package muesli1.cwm;
 
 import com.intellij.notification.NotificationGroupManager;
 import com.intellij.notification.NotificationType;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
-import com.intellij.psi.PsiTreeAnyChangeAbstractAdapter;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
+import static muesli1.cwm.CommonKt.MAX_PATH_LENGTH;
 import static muesli1.cwm.CommonKt.MAX_USER_CODE_LENGTH;
 
 class ProjectUserData extends ClientReceiver {
 
+    public static final int INIT_READ_THREADS = 4;
+
     @NotNull
     private final Project project;
     @NotNull
@@ -39,16 +56,43 @@ class ProjectUserData extends ClientReceiver {
     @NotNull
     private final List<String> whitelist;
     @NotNull
-    private final HashMap<Path, Boolean> whitelistCache = new HashMap<>();
-    private PsiTreeAnyChangeAbstractAdapter listener;
+    private final WhitelistMatcher whitelistMatcher;
+    // Disposes the document and file listeners
+    @NotNull
+    private final Disposable listenerDisposable = Disposer.newDisposable();
 
     private final Map<Path, String> developerSetTextMap = new HashMap<>();
     private final Object developerSetTextMonitor = new Object();
+    // VirtualFile paths of the keys of developerSetTextMap, read without the monitor
+    private final Set<String> developerSetTextPaths = ConcurrentHashMap.newKeySet();
+
+    // Developer: last text sent to the server per path, base of the next patch
+    private final Map<String, String> uploadedTextMap = new HashMap<>();
+    private final Object uploadedTextMonitor = new Object();
 
-    private final ClientApplication client = ClientKt.createClient();
+    // User: last text received from the server per path, base of incoming patches
+    private final Map<String, String> receivedTextMap = new HashMap<>();
+    private final Object receivedTextMonitor = new Object();
+
+    @NotNull
+    private final ClientApplication client;
+
+    @NotNull
+    private final DeveloperUploadCoalescer developerUploadCoalescer;
+
+    // Reads the files of the developer init in parallel
+    @NotNull
+    private final Executor initReadExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("CWM developer init", INIT_READ_THREADS);
 
     private final Map<String, Map<Integer, List<String>>> developerUserCodeMap = new HashMap<>();
     private final Object developerUserCodeMapMonitor = new Object();
+    // Guarded by developerUserCodeMapMonitor
+    private long developerUserCodeSequence = 0;
+    private boolean awaitingUserCodeSnapshot = false;
+    // Changed together with developerUserCodeMap, read without the monitor
+    private final UserCodeIndex userCodeIndex = new UserCodeIndex();
+
+    private final List<UserCodeListener> userCodeListeners = new CopyOnWriteArrayList<>();
 
     public Map<String, Map<Integer, List<String>>> getDeveloperUserCodeMap() {
         return developerUserCodeMap;
@@ -58,15 +102,43 @@ class ProjectUserData extends ClientReceiver {
         return developerUserCodeMapMonitor;
     }
 
+    @NotNull
+    public UserCodeIndex getUserCodeIndex() {
+        return userCodeIndex;
+    }
+
+    /**
+     * The listener is removed again once parent is disposed.
+     */
+    public void addUserCodeListener(@NotNull UserCodeListener listener, @NotNull Disposable parent) {
+        userCodeListeners.add(listener);
+        Disposer.register(parent, () -> userCodeListeners.remove(listener));
+    }
+
+    private void fireUserCodeChanged(@Nullable String path, @Nullable Set<Integer> regionIndices) {
+        for(UserCodeListener listener : userCodeListeners) {
+            listener.userCodeChanged(path, regionIndices);
+        }
+    }
+
     public ProjectUserData(@NotNull Project project, @NotNull Path basePath, @NotNull String projectName, @NotNull List<String> whitelist) {
         this.project = project;
         this.basePath = basePath;
         this.projectName = projectName;
         this.whitelist = whitelist;
+        this.whitelistMatcher = new WhitelistMatcher(basePath, whitelist, text -> showNotification(text, NotificationType.ERROR));
+        this.client = ClientKt.createClient(projectName, AppSettingsState.getInstance().getClientId());
+
+        final AppSettingsState settingsState = AppSettingsState.getInstance();
+        this.developerUploadCoalescer = new DeveloperUploadCoalescer(AppExecutorUtil.getAppScheduledExecutorService(),
+                                                                     this::uploadDeveloperCode,
+                                                                     settingsState.uploadDebounceMillis,
+                                                                     settingsState.uploadMaxLatencyMillis);
 
         connectToServer();
 
-        installPsiChangeListener();
+        installDocumentListener();
+        installWhitelistListener();
 
         /*
 
@@ -116,6 +188,7 @@ class ProjectUserData extends ClientReceiver {
         synchronized(developerSetTextMonitor) {
             developerSetTextMap.put(projectPath, text);
         }
+        developerSetTextPaths.add(WhitelistMatcher.toVirtualFilePath(projectPath));
         PsiFile foundFile = findFile(projectPath);
 
         if(foundFile != null) {
@@ -142,10 +215,17 @@ class ProjectUserData extends ClientReceiver {
             return;
         }
         final VirtualFile virtualFile = file.getVirtualFile();
+        final Document document = PsiDocumentManager.getInstance(project).getDocument(file);
+
+        if(virtualFile != null && document != null) {
+            parseDocument(virtualFile, document);
+        }
+    }
+
+    private void parseDocument(@NotNull VirtualFile virtualFile, @NotNull Document document) {
         final PsiDocumentManager psiDocumentManager = PsiDocumentManager.getInstance(project);
-        final Document document = psiDocumentManager.getDocument(file);
 
-        if(virtualFile != null && document != null && document.isWritable()) {
+        if(document.isWritable()) {
             // Found document!
 
             final String pathStr = virtualFile.getPath();
@@ -169,7 +249,7 @@ class ProjectUserData extends ClientReceiver {
                     application.assertReadAccessAllowed();
                     final String currentText = document.getText();
 
-                    uploadDeveloperCode(projectPath, currentText);
+                    developerUploadCoalescer.submit(projectPath, currentText);
                 }
                 return;
             }
@@ -226,7 +306,10 @@ class ProjectUserData extends ClientReceiver {
                             document.setText(changedText);
 
                             psiDocumentManager.commitDocument(document);
-                            file.clearCaches();
+                            final PsiFile file = psiDocumentManager.getPsiFile(document);
+                            if(file != null) {
+                                file.clearCaches();
+                            }
                         });
 
 
@@ -258,70 +341,61 @@ class ProjectUserData extends ClientReceiver {
             }*/
     }
 
-    private boolean checkProjectWhitelist(Path projectPath) {
-        boolean isInWhitelist = false;
-        Boolean cacheHit = whitelistCache.get(projectPath);
-
-        if(cacheHit != null) {
-            isInWhitelist = cacheHit;
-        }
-        else {
-            for(Path whitelistedDir : getWhitelistedDirs()) {
-                if(isChild(whitelistedDir, projectPath)) {
-                    isInWhitelist = true;
-                    break;
-                }
-            }
-            whitelistCache.put(projectPath, isInWhitelist);
-        }
-
-        //System.out.println(projectPath + "->" + isInWhitelist);
-        return isInWhitelist;
-    }
-
     private void uploadDeveloperCode(Path projectPath, String currentText) {
         final Path relativePath = basePath.relativize(projectPath);
 
-        if(checkProjectWhitelist(projectPath)) {
+        if(whitelistMatcher.matches(projectPath)) {
 
             //System.out.println("Upload developer code " + relativePath + ":");
             //System.out.println(currentText);
 
-            client.sendUnsafe(new DeveloperUpdatePacket(pathToUniversalString(relativePath), currentText));
-        }
-
-    }
+            final String path = pathToUniversalString(relativePath);
+            final String previousText;
+            synchronized(uploadedTextMonitor) {
+                previousText = uploadedTextMap.put(path, currentText);
+            }
 
-    private static boolean isChild(Path dir, Path file) {
-        Path parent = file.getParent();
-        while(parent != null) {
-            if(parent.equals(dir)) {
-                return true;
+            final Packet packet;
+            if(previousText == null) {
+                packet = new DeveloperUpdatePacket(path, currentText);
+            }
+            else {
+                final TextEdit edit = TextPatchKt.createTextEdit(previousText, currentText);
+                if(edit == null) {
+                    return;
+                }
+                packet = new DeveloperPatchPacket(path, TextPatchKt.textHash(previousText), TextPatchKt.textHash(currentText), List.of(edit));
             }
 
-            parent = parent.getParent();
+            if(client.sendUnsafe(packet) == SendResult.DROPPED) {
+                // Not sent, the next upload has to contain the full text
+                synchronized(uploadedTextMonitor) {
+                    uploadedTextMap.remove(path);
+                }
+            }
         }
-        return false;
+
     }
 
     private void uploadUserCode(Path projectPath, List<String> userCode) {
         final Path relativePath = basePath.relativize(projectPath);
 
-        if(checkProjectWhitelist(projectPath)) {
+        if(whitelistMatcher.matches(projectPath)) {
             /*System.out.println("Upload user code " + relativePath + ":");
             for(int i = 0; i < userCode.size(); i++) {
                 System.out.println("Code#" + i + ":");
                 System.out.println(userCode.get(i));
             }*/
 
-            if(checkForSafety(userCode)) {
-                client.sendUnsafe(new UserCodeUpdatePacket(pathToUniversalString(relativePath), userCode));
+            final String path = pathToUniversalString(relativePath);
+            if(checkForSafety(path, userCode)) {
+                client.sendUnsafe(new UserCodeUpdatePacket(path, userCode));
             }
         }
     }
 
-    private boolean checkForSafety(List<String> userCode) {
-        final boolean tooLong = userCode.stream().anyMatch(s -> s.length() > MAX_USER_CODE_LENGTH);
+    private boolean checkForSafety(String path, List<String> userCode) {
+        final boolean tooLong = path.length() > MAX_PATH_LENGTH || userCode.stream().anyMatch(s -> s.length() > MAX_USER_CODE_LENGTH);
 
         if(tooLong) {
             showNotification("User code is too long!", NotificationType.ERROR);
@@ -331,28 +405,57 @@ class ProjectUserData extends ClientReceiver {
     }
 
 
-    private void installPsiChangeListener() {
-
-
-        listener = new PsiTreeAnyChangeAbstractAdapter() {
+    private void installDocumentListener() {
+        EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
             @Override
-            protected void onChange(@Nullable PsiFile file) {
+            public void documentChanged(@NotNull DocumentEvent event) {
                 if(project.isDisposed()) {
                     return;
                 }
-                if(file == null) {
-                    return;
+                final Document document = event.getDocument();
+                final VirtualFile virtualFile = FileDocumentManager.getInstance().getFile(document);
+
+                if(virtualFile != null && isRelevant(virtualFile)) {
+                    parseDocument(virtualFile, document);
                 }
+            }
+        }, listenerDisposable);
+    }
+
+    /**
+     * Cheap check that runs for every document change of the IDE, before anything is allocated.
+     * Developers only upload whitelisted files, users only merge files the developer sent.
+     */
+    private boolean isRelevant(@NotNull VirtualFile virtualFile) {
+        if(!virtualFile.isInLocalFileSystem()) {
+            return false;
+        }
+        final String path = virtualFile.getPath();
 
-                parseText(file);
+        if(AppSettingsState.getInstance().developer) {
+            return whitelistMatcher.matches(path);
+        }
+        return developerSetTextPaths.contains(path);
+    }
 
+    private void installWhitelistListener() {
+        project.getMessageBus().connect(listenerDisposable).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for(VFileEvent event : events) {
+                    final VirtualFile file = event.getFile();
+                    if(whitelistMatcher.affects(event.getPath()) || (file != null && whitelistMatcher.affects(file.getPath()))) {
+                        whitelistMatcher.invalidate();
+                        return;
+                    }
+                }
             }
-        };
-        PsiManager.getInstance(project).addPsiTreeChangeListener(listener);
+        });
     }
 
     public void uninstall() {
-        PsiManager.getInstance(project).removePsiTreeChangeListener(listener);
+        Disposer.dispose(listenerDisposable);
+        developerUploadCoalescer.cancel();
 
         client.close();
     }
@@ -371,11 +474,20 @@ class ProjectUserData extends ClientReceiver {
             str = "Unknown";
         }
 
-        final String suffix = connecting? "\nRetry in 5s" : "\nEND OF SESSION";
+        String suffix = connecting? "\nRetry in 5s" : "\nEND OF SESSION";
+
+        final long collapsed = getCollapsedDeveloperUploadCount();
+        if(collapsed > 0) {
+            suffix += "\n" + collapsed + " change(s) were merged into later uploads.";
+        }
 
         showNotification("Code With Marc: Error in connection: " + str + suffix, NotificationType.ERROR);
     }
 
+    public long getCollapsedDeveloperUploadCount() {
+        return developerUploadCoalescer.getCollapsedEventCount();
+    }
+
     public void showNotification(@NotNull String text, @NotNull NotificationType type) {
         NotificationGroupManager.getInstance()
                                 .getNotificationGroup("Code With Marc Notifications")
@@ -390,6 +502,10 @@ class ProjectUserData extends ClientReceiver {
             final DeveloperUpdatePacket dup = (DeveloperUpdatePacket) packet;
             final Path projectPath = getProjectPath(dup.getPath());
 
+            synchronized(receivedTextMonitor) {
+                receivedTextMap.put(dup.getPath(), dup.getText());
+            }
+
             //System.out.println("Try receive: " + projectPath);
             final Application application = ApplicationManager.getApplication();
             if(application != null) {
@@ -400,18 +516,193 @@ class ProjectUserData extends ClientReceiver {
             }
             //System.out.println("DEV UPGRADE?");
         }
+        else if(packet instanceof DeveloperPatchPacket) {
+            applyDeveloperPatch((DeveloperPatchPacket) packet);
+        }
+        else if(packet instanceof DeveloperTextRequestPacket) {
+            resendDeveloperText(((DeveloperTextRequestPacket) packet).getPath());
+        }
         else if(packet instanceof CompleteUserCodePacket) {
+            final CompleteUserCodePacket cucp = (CompleteUserCodePacket) packet;
             synchronized(developerUserCodeMapMonitor) {
                 developerUserCodeMap.clear();
-                developerUserCodeMap.putAll(((CompleteUserCodePacket) packet).getCode());
+                for(Map.Entry<String, Map<Integer, List<String>>> entry : cucp.getCode().entrySet()) {
+                    developerUserCodeMap.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                }
+                userCodeIndex.reset(developerUserCodeMap);
+                developerUserCodeSequence = cucp.getSequence();
+                awaitingUserCodeSnapshot = false;
                 // System.out.println(developerUserCodeMap);
             }
+            fireUserCodeChanged(null, null);
+        }
+        else if(packet instanceof ClusteredUserCodePacket) {
+            applyClusteredUserCode((ClusteredUserCodePacket) packet);
+        }
+        else if(packet instanceof UserCodeDeltaPacket) {
+            applyUserCodeDelta((UserCodeDeltaPacket) packet);
         }
         else {
             throw new RuntimeException("Received invalid Packet: " + packet.getClass());
         }
     }
 
+    private void applyDeveloperPatch(@NotNull DeveloperPatchPacket patch) {
+        String text = null;
+        synchronized(receivedTextMonitor) {
+            final String base = receivedTextMap.get(patch.getPath());
+            if(base != null && TextPatchKt.textHash(base) == patch.getBaseHash()) {
+                text = TextPatchKt.applyTextEdits(base, patch.getEdits());
+                if(text != null && TextPatchKt.textHash(text) != patch.getHash()) {
+                    text = null;
+                }
+            }
+
+            if(text != null) {
+                receivedTextMap.put(patch.getPath(), text);
+            }
+            else {
+                receivedTextMap.remove(patch.getPath());
+            }
+        }
+
+        if(text == null) {
+            // Out of sync, ask for the full text
+            client.sendUnsafe(new DeveloperTextRequestPacket(patch.getPath()));
+            return;
+        }
+
+        final Path projectPath = getProjectPath(patch.getPath());
+        final String finalText = text;
+        final Application application = ApplicationManager.getApplication();
+        if(application != null) {
+            application.invokeLater(() -> updateText(projectPath, finalText));
+        }
+    }
+
+    private void resendDeveloperText(@NotNull String path) {
+        synchronized(uploadedTextMonitor) {
+            uploadedTextMap.remove(path);
+        }
+
+        final Path projectPath = getProjectPath(path);
+        final Application application = ApplicationManager.getApplication();
+        if(application == null) {
+            return;
+        }
+
+        application.runReadAction(() -> {
+            final PsiFile foundFile = findFile(projectPath);
+            if(foundFile != null) {
+                parseText(foundFile);
+                return;
+            }
+
+            try {
+                uploadDeveloperCode(projectPath, getText(projectPath));
+            }
+            catch(IOException e) {
+                showNotification("File error: " + projectPath + " (" + e + ")", NotificationType.ERROR);
+            }
+        });
+    }
+
+    private void applyClusteredUserCode(@NotNull ClusteredUserCodePacket packet) {
+        synchronized(developerUserCodeMapMonitor) {
+            developerUserCodeMap.clear();
+            for(Map.Entry<String, Map<Integer, List<SnippetCluster>>> entry : packet.getClusters().entrySet()) {
+                final Map<Integer, List<String>> userMap = new HashMap<>();
+                for(Map.Entry<Integer, List<SnippetCluster>> region : entry.getValue().entrySet()) {
+                    final int index = region.getKey();
+                    for(SnippetCluster cluster : region.getValue()) {
+                        for(Integer connectionId : cluster.getConnectionIds()) {
+                            // Regions left out were blank
+                            final List<String> regions = userMap.computeIfAbsent(connectionId, k -> new ArrayList<>());
+                            while(regions.size() <= index) {
+                                regions.add("");
+                            }
+                            regions.set(index, cluster.getText());
+                        }
+                    }
+                }
+                developerUserCodeMap.put(entry.getKey(), userMap);
+            }
+            userCodeIndex.reset(developerUserCodeMap);
+            developerUserCodeSequence = packet.getSequence();
+            awaitingUserCodeSnapshot = false;
+        }
+        fireUserCodeChanged(null, null);
+    }
+
+    private void applyUserCodeDelta(@NotNull UserCodeDeltaPacket delta) {
+        final Set<Integer> changed = applyUserCodeDeltaLocked(delta);
+        if(changed == null || !changed.isEmpty()) {
+            fireUserCodeChanged(delta.getPath(), changed);
+        }
+    }
+
+    /**
+     * Returns the changed region indices, null if all regions of the path may have changed.
+     */
+    @Nullable
+    private Set<Integer> applyUserCodeDeltaLocked(@NotNull UserCodeDeltaPacket delta) {
+        final long lastSequence;
+        synchronized(developerUserCodeMapMonitor) {
+            if(awaitingUserCodeSnapshot || delta.getSequence() <= developerUserCodeSequence) {
+                return Collections.emptySet();
+            }
+
+            if(delta.getSequence() == developerUserCodeSequence + 1) {
+                developerUserCodeSequence = delta.getSequence();
+
+                if(delta.getSize() == 0) {
+                    // The server no longer keeps this user's code
+                    final Map<Integer, List<String>> userMap = developerUserCodeMap.get(delta.getPath());
+                    if(userMap != null) {
+                        final List<String> previous = userMap.remove(delta.getConnectionId());
+                        if(userMap.isEmpty()) {
+                            developerUserCodeMap.remove(delta.getPath());
+                        }
+                        userCodeIndex.update(delta.getPath(), delta.getConnectionId(), previous, null);
+                    }
+                    return null;
+                }
+
+                final Map<Integer, List<String>> userMap = developerUserCodeMap.computeIfAbsent(delta.getPath(), k -> new HashMap<>());
+                final List<String> previous = userMap.get(delta.getConnectionId());
+                final List<String> updated = new ArrayList<>(delta.getSize());
+
+                for(int i = 0; i < delta.getSize(); i++) {
+                    String region = delta.getRegions().get(i);
+                    if(region == null) {
+                        region = previous != null && i < previous.size()? previous.get(i) : "";
+                    }
+                    updated.add(region);
+                }
+
+                userMap.put(delta.getConnectionId(), updated);
+                userCodeIndex.update(delta.getPath(), delta.getConnectionId(), previous, updated);
+
+                final Set<Integer> changed = new HashSet<>(delta.getRegions().keySet());
+                for(int i = delta.getSize(); previous != null && i < previous.size(); i++) {
+                    changed.add(i);
+                }
+                return changed;
+            }
+
+            // Missed a delta, wait for a complete snapshot
+            awaitingUserCodeSnapshot = true;
+            lastSequence = developerUserCodeSequence;
+        }
+
+        if(client.sendUnsafe(new UserCodeResyncPacket(lastSequence)) == SendResult.DROPPED) {
+            synchronized(developerUserCodeMapMonitor) {
+                awaitingUserCodeSnapshot = false;
+            }
+        }
+        return Collections.emptySet();
+    }
+
     @NotNull
     public Path getProjectPath(@NotNull String path) {
         return basePath.resolve(universalStringToPath(path));
@@ -438,28 +729,7 @@ class ProjectUserData extends ClientReceiver {
     }
 
     public List<Path> getWhitelistedDirs() {
-
-        final List<Path> dirs = new ArrayList<>();
-
-        for(String s : whitelist) {
-            try {
-                final Path subPath = universalStringToPath(s);
-                final Path fullPath = basePath.resolve(subPath);
-
-
-                if(!Files.exists(fullPath) || !Files.isDirectory(fullPath)) {
-                    showNotification("Non existent directory: " + s, NotificationType.ERROR);
-                }
-                else {
-                    dirs.add(fullPath);
-                }
-            }
-            catch(InvalidPathException e) {
-                showNotification("Invalid path: " + s, NotificationType.ERROR);
-            }
-        }
-
-        return dirs;
+        return whitelistMatcher.getDirectories();
     }
 
     public List<Path> getWhitelistedFiles() {
@@ -476,25 +746,69 @@ class ProjectUserData extends ClientReceiver {
     @NotNull
     @Override
     public DeveloperInitPacket createDeveloperData() {
+        // The server starts over with these texts, so the next upload of every file is a full one
+        synchronized(uploadedTextMonitor) {
+            uploadedTextMap.clear();
+        }
 
-        List<Path> files = getWhitelistedFiles();
-        final Map<String, String> code = new HashMap<>();
+        // The files follow in batches
+        return new DeveloperInitPacket(projectName, new HashMap<>());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<DeveloperInitBatchPacket> createDeveloperBatches() {
+        final List<Path> files = getWhitelistedFiles();
 
-        for(Path file : files) {
+        return new DeveloperInitStream(files, file -> pathToUniversalString(basePath.relativize(file)), file -> {
             try {
-                final String text = getText(file);
-                final Path relativeFile = basePath.relativize(file);
-                code.put(pathToUniversalString(relativeFile), text);
+                return getText(file);
             }
             catch(IOException e) {
-                showNotification("File error: " + file + " (" + e.toString() + ")", NotificationType.ERROR);
-                throw new RuntimeException(e);
+                showNotification("File error: " + file + " (" + e + ")", NotificationType.ERROR);
+                throw e;
             }
+        }, initReadExecutor);
+    }
+
+    @Override
+    public void sentDeveloperFiles(int sentFiles, int totalFiles) {
+        if(sentFiles == totalFiles) {
+            showNotification("Sent developer packet with " + sentFiles + " file(s).", NotificationType.INFORMATION);
         }
+    }
 
-        showNotification("Sent developer packet with " + files.size() + " file(s).", NotificationType.INFORMATION);
+    @Override
+    public void evicted(@NotNull Packet packet) {
+        // The server does not get the change, so the next upload has to contain the full text
+        if(packet instanceof DeveloperUpdatePacket) {
+            synchronized(uploadedTextMonitor) {
+                uploadedTextMap.remove(((DeveloperUpdatePacket) packet).getPath());
+            }
+        }
+        else if(packet instanceof DeveloperPatchPacket) {
+            synchronized(uploadedTextMonitor) {
+                uploadedTextMap.remove(((DeveloperPatchPacket) packet).getPath());
+            }
+        }
+        else if(packet instanceof UserCodeResyncPacket) {
+            synchronized(developerUserCodeMapMonitor) {
+                awaitingUserCodeSnapshot = false;
+            }
+        }
+    }
 
-        return new DeveloperInitPacket(projectName, code);
+    @NotNull
+    @Override
+    public UserSyncPacket createUserSyncData() {
+        // Texts received before a reconnect are still applied, the server skips unchanged ones
+        final Map<String, Long> hashes = new HashMap<>();
+        synchronized(receivedTextMonitor) {
+            for(Map.Entry<String, String> entry : receivedTextMap.entrySet()) {
+                hashes.put(entry.getKey(), TextPatchKt.textHash(entry.getValue()));
+            }
+        }
+        return new UserSyncPacket(hashes);
     }
 
 
@@ -512,7 +826,7 @@ class ProjectUserData extends ClientReceiver {
     }
 
     @NotNull
-    private Path universalStringToPath(@NotNull String path) {
+    static Path universalStringToPath(@NotNull String path) {
         final String[] split = path.split("/");
         if(split.length == 0) {
             throw new RuntimeException("Incorrect path: " + path);
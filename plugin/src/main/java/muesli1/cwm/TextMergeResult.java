@@ -3,6 +3,7 @@ package muesli1.cwm;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class TextMergeResult {
@@ -25,90 +26,117 @@ public class TextMergeResult {
         return text;
     }
 
-    private static List<int[]> findUserCodeLimits(List<@NotNull String> lines) {
-        final List<int[]> limits = new ArrayList<>();
+    private static final String USER_CODE_START = "<USER CODE>";
+    private static final String USER_CODE_END = "</USER CODE>";
 
-        int userCodeStartLine = -1;
+    /**
+     * End of the text without trailing line breaks, those never belong to a line.
+     */
+    private static int contentEnd(@NotNull String text) {
+        int end = text.length();
+        while(end > 0 && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Finds the user code regions in one pass over the lines of text[0, end).
+     * Every region is stored as two offsets: the line break ending the start line
+     * and the beginning of the end line.
+     */
+    private static int[] findUserCodeLimits(@NotNull String text, int end) {
+        int[] limits = new int[8];
+        int size = 0;
+
+        int nextStart = text.indexOf(USER_CODE_START);
+        int nextEnd = text.indexOf(USER_CODE_END);
+        int startLineEnd = -1;
         boolean isUserCode = false;
-        for(int i = 0; i < lines.size(); i++) {
-            final String currentLine = lines.get(i);
-            if(currentLine.contains("<USER CODE>") && isUserCode == false) {
+
+        int lineStart = 0;
+        while(true) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if(lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+
+            if(nextStart >= 0 && nextStart < lineStart) {
+                nextStart = text.indexOf(USER_CODE_START, lineStart);
+            }
+            if(nextEnd >= 0 && nextEnd < lineStart) {
+                nextEnd = text.indexOf(USER_CODE_END, lineStart);
+            }
+
+            // Markers contain no line break, so starting inside the line means contained in it
+            final boolean containsStart = nextStart >= 0 && nextStart < lineEnd;
+            final boolean containsEnd = nextEnd >= 0 && nextEnd < lineEnd;
+
+            if(containsStart && !isUserCode) {
                 isUserCode = true;
-                userCodeStartLine = i;
+                startLineEnd = lineEnd;
             }
-            else if(currentLine.contains("</USER CODE>")) {
+            else if(containsEnd) {
                 if(isUserCode) {
-                    limits.add(new int[]{userCodeStartLine, i});
+                    if(size + 2 > limits.length) {
+                        limits = Arrays.copyOf(limits, limits.length * 2);
+                    }
+                    limits[size++] = startLineEnd;
+                    limits[size++] = lineStart;
                 }
                 isUserCode = false;
             }
+
+            if(lineEnd >= end) {
+                break;
+            }
+            lineStart = lineEnd + 1;
         }
 
-        return limits;
+        return Arrays.copyOf(limits, size);
     }
 
     @NotNull
     public static TextMergeResult mergeTexts(@NotNull String currentText, @NotNull String expectedText) {
-        final List<@NotNull String> currentLines = List.of(currentText.split("\n"));
-        final List<@NotNull String> expectedLines = List.of(expectedText.split("\n"));
-        final List<@NotNull String> combinedLines = new ArrayList<>();
+        final int[] currentLimits = findUserCodeLimits(currentText, contentEnd(currentText));
+        final int expectedEnd = contentEnd(expectedText);
+        final int[] expectedLimits = findUserCodeLimits(expectedText, expectedEnd);
+        final int regionCount = expectedLimits.length / 2;
 
+        final List<String> userCode = new ArrayList<>(regionCount);
 
-        final List<int[]> currentLimits = findUserCodeLimits(currentLines);
-        List<int[]> expectedLimits = findUserCodeLimits(expectedLines);
-
-        final List<String> userCode = new ArrayList<>();
-
-        if(currentLimits.size() != expectedLimits.size()) {
-            for(int[] expectedLimit : expectedLimits) {
+        if(currentLimits.length != expectedLimits.length) {
+            for(int i = 0; i < regionCount; i++) {
                 userCode.add("");
             }
             // Discard new text! Incorrect structure!
             return TextMergeResult.of(expectedText, userCode);
         }
 
-        for(int i = 0; i < expectedLines.size(); i++) {
-
-            boolean add = true;
-
-            for(int limitIndex = 0; limitIndex < expectedLimits.size(); limitIndex++) {
-                final int limitStart = expectedLimits.get(limitIndex)[0];
-                final int limitEnd = expectedLimits.get(limitIndex)[1];
-
-                if(limitStart == i) {
-                    // After Start of limit!
-                    combinedLines.add(expectedLines.get(i));
-                    add = false;
-
-                    // Get current lines
-                    final int[] currentLimit = currentLimits.get(limitIndex);
+        final StringBuilder combined = new StringBuilder(expectedEnd + currentText.length());
+        int copyFrom = 0;
 
-                    final List<String> limitData = new ArrayList<>();
-                    for(int j = currentLimit[0] + 1; j < currentLimit[1]; j++) {
-                        limitData.add(currentLines.get(j));
-                    }
-
-                    combinedLines.addAll(limitData);
-                    userCode.add(String.join("\n",limitData));
+        for(int i = 0; i < expectedLimits.length; i += 2) {
+            // Expected text up to the end of the start line
+            combined.append(expectedText, copyFrom, expectedLimits[i]);
 
-                    break;
-                }
-                else if(limitStart < i && i < limitEnd) {
-                    // In between!
-                    add = false;
-                    break;
-                }
-            }
-            if(add) {
-                combinedLines.add(expectedLines.get(i));
+            // Lines between the markers of the current text
+            final int innerStart = currentLimits[i] + 1;
+            final int innerEnd = currentLimits[i + 1] - 1;
+            String inner = "";
+            if(innerStart <= innerEnd) {
+                inner = currentText.substring(innerStart, innerEnd);
+                combined.append('\n').append(inner);
             }
-        }
+            combined.append('\n');
+            userCode.add(inner);
 
-        if(userCode.size() != expectedLimits.size()) {
-            throw new RuntimeException("Internal Error: " + userCode.size() + " incorrect user code size!");
+            // Continue with the end line of the expected text
+            copyFrom = expectedLimits[i + 1];
         }
+        combined.append(expectedText, copyFrom, expectedEnd);
 
-        return TextMergeResult.of(String.join("\n", combinedLines), userCode);
+        return TextMergeResult.of(combined.toString(), userCode);
     }
 
     private static TextMergeResult of(String text, List<String> userCode) {
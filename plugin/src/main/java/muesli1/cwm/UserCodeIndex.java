@@ -0,0 +1,192 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup structures over the user code a developer received, so the filter of the user code view
+ * is resolved without scanning every path and without the lock the user code is written under.
+ * Changes must not run concurrently, ProjectUserData makes them while holding developerUserCodeMapMonitor.
+ * Reading is possible from any thread at any time.
+ */
+public class UserCodeIndex {
+
+    public static final int MAX_RESOLVED_FILTERS = 64;
+
+    private static final class PathEntry {
+        // Guarded by the writer
+        private int users = 0;
+        // Region index -> connection id -> region text, the inner maps are never changed once published
+        private final Map<Integer, Map<Integer, String>> regions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * All paths, sorted, plus the filters resolved against them so far. Replaced as soon as the paths change.
+     */
+    private static final class PathLookup {
+        private final List<String> paths;
+        private final Map<String, List<String>> resolved = new ConcurrentHashMap<>();
+
+        private PathLookup(@NotNull List<String> sortedPaths) {
+            this.paths = sortedPaths;
+        }
+
+        private static PathLookup sorted(@NotNull Collection<String> paths) {
+            final List<String> sortedPaths = new ArrayList<>(paths);
+            Collections.sort(sortedPaths);
+            return new PathLookup(sortedPaths);
+        }
+
+        // Copies instead of sorting again, a new path must not be in the list yet
+        private PathLookup with(@NotNull String path) {
+            final List<String> sortedPaths = new ArrayList<>(paths.size() + 1);
+            sortedPaths.addAll(paths);
+            sortedPaths.add(-Collections.binarySearch(paths, path) - 1, path);
+            return new PathLookup(sortedPaths);
+        }
+
+        private PathLookup without(@NotNull String path) {
+            final List<String> sortedPaths = new ArrayList<>(paths);
+            sortedPaths.remove(Collections.binarySearch(paths, path));
+            return new PathLookup(sortedPaths);
+        }
+    }
+
+    private volatile Map<String, PathEntry> entries = new ConcurrentHashMap<>();
+    private volatile PathLookup lookup = new PathLookup(Collections.emptyList());
+
+    /**
+     * Replaces everything with the given code, path -> connection id -> regions.
+     */
+    public void reset(@NotNull Map<String, Map<Integer, List<String>>> code) {
+        final Map<String, PathEntry> newEntries = new ConcurrentHashMap<>();
+        for(Map.Entry<String, Map<Integer, List<String>>> path : code.entrySet()) {
+            final PathEntry entry = new PathEntry();
+            final Map<Integer, Map<Integer, String>> regions = new HashMap<>();
+            for(Map.Entry<Integer, List<String>> user : path.getValue().entrySet()) {
+                final List<String> userRegions = user.getValue();
+                for(int i = 0; i < userRegions.size(); i++) {
+                    regions.computeIfAbsent(i, k -> new HashMap<>()).put(user.getKey(), userRegions.get(i));
+                }
+                entry.users++;
+            }
+            for(Map.Entry<Integer, Map<Integer, String>> region : regions.entrySet()) {
+                entry.regions.put(region.getKey(), Collections.unmodifiableMap(region.getValue()));
+            }
+            newEntries.put(path.getKey(), entry);
+        }
+
+        entries = newEntries;
+        lookup = PathLookup.sorted(newEntries.keySet());
+    }
+
+    /**
+     * Applies the change of one user's code. Null stands for no code at all.
+     */
+    public void update(@NotNull String path, int connectionId, @Nullable List<String> previous, @Nullable List<String> updated) {
+        final Map<String, PathEntry> entries = this.entries;
+        PathEntry entry = entries.get(path);
+        final boolean added = entry == null;
+
+        if(added) {
+            if(updated == null) {
+                return;
+            }
+            entry = new PathEntry();
+            entries.put(path, entry);
+        }
+
+        if(previous == null && updated != null) {
+            entry.users++;
+        }
+        else if(previous != null && updated == null) {
+            entry.users--;
+        }
+
+        final int size = Math.max(previous == null? 0 : previous.size(), updated == null? 0 : updated.size());
+        for(int i = 0; i < size; i++) {
+            final String oldRegion = previous != null && i < previous.size()? previous.get(i) : null;
+            final String newRegion = updated != null && i < updated.size()? updated.get(i) : null;
+            if(Objects.equals(oldRegion, newRegion)) {
+                continue;
+            }
+
+            // Readers may still iterate the old map, so it is replaced instead of changed
+            final Map<Integer, String> region = entry.regions.get(i);
+            final Map<Integer, String> changed = region == null? new HashMap<>() : new HashMap<>(region);
+            if(newRegion == null) {
+                changed.remove(connectionId);
+            }
+            else {
+                changed.put(connectionId, newRegion);
+            }
+
+            if(changed.isEmpty()) {
+                entry.regions.remove(i);
+            }
+            else {
+                entry.regions.put(i, Collections.unmodifiableMap(changed));
+            }
+        }
+
+        if(entry.users <= 0) {
+            entries.remove(path);
+            if(!added) {
+                lookup = lookup.without(path);
+            }
+        }
+        else if(added) {
+            lookup = lookup.with(path);
+        }
+    }
+
+    /**
+     * Whether the filter of the user code view stands for the path.
+     */
+    public static boolean matches(@NotNull String path, @NotNull String filter) {
+        return path.contains(filter);
+    }
+
+    /**
+     * Returns the sorted paths the filter {@link #matches(String, String) matches}. The view resolves the same
+     * filter for every render, so the answer is kept until the paths change and most calls scan nothing.
+     */
+    @NotNull
+    public List<String> resolve(@NotNull String filter) {
+        final PathLookup lookup = this.lookup;
+        final List<String> cached = lookup.resolved.get(filter);
+        if(cached != null) {
+            return cached;
+        }
+
+        final List<String> found = new ArrayList<>();
+        for(String path : lookup.paths) {
+            if(matches(path, filter)) {
+                found.add(path);
+            }
+        }
+
+        final List<String> result = Collections.unmodifiableList(found);
+        if(lookup.resolved.size() >= MAX_RESOLVED_FILTERS) {
+            lookup.resolved.clear();
+        }
+        lookup.resolved.put(filter, result);
+        return result;
+    }
+
+    /**
+     * Returns the region with the given index of every user that has it.
+     */
+    @NotNull
+    public List<String> collect(@NotNull String path, int userCodeIndex) {
+        final PathEntry entry = entries.get(path);
+        if(entry == null) {
+            return Collections.emptyList();
+        }
+        final Map<Integer, String> region = entry.regions.get(userCodeIndex);
+        return region == null? Collections.emptyList() : new ArrayList<>(region.values());
+    }
+}
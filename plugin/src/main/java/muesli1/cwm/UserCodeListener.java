@@ -0,0 +1,17 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Notified after the developer's copy of the user code changed, on the thread that received the packet.
+ */
+public interface UserCodeListener {
+
+    /**
+     * @param path          the changed file, null if every file may have changed
+     * @param regionIndices the changed regions of the file, null if all of them may have changed
+     */
+    void userCodeChanged(@Nullable String path, @Nullable Set<Integer> regionIndices);
+}
@@ -0,0 +1,65 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the user code of one region into the text shown to the developer.
+ */
+public class UserCodeSnippets {
+
+    public static final String SEPARATION_LAYER = "-".repeat(25);
+
+    @NotNull
+    public static String assemble(@NotNull List<String> userCodeSnippets) {
+        // Identical answers are shown once, the most common first
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        int total = 0;
+        for(String snippet : userCodeSnippets) {
+            final String mapped = mapSnippet(snippet);
+            if(mapped != null) {
+                counts.merge(mapped, 1, Integer::sum);
+                total++;
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> sorted = new ArrayList<>(counts.entrySet());
+        sorted.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        final StringBuilder code = new StringBuilder();
+
+        code.append("Found ").append(total).append(" user codes");
+        if(sorted.size() != total) {
+            code.append(" (").append(sorted.size()).append(" different)");
+        }
+        code.append(":");
+        code.append("\n");
+
+        for(Map.Entry<String, Integer> entry : sorted) {
+            code.append("\n");
+            code.append(SEPARATION_LAYER).append("\n");
+            if(entry.getValue() > 1) {
+                code.append(entry.getValue()).append(" times:\n");
+            }
+            code.append("\n");
+            code.append(entry.getKey()).append("\n");
+        }
+
+        return code.toString();
+    }
+
+    /**
+     * Removes the common indentation, returns null for blank snippets. Servers since
+     * {@link CommonKt#PROTOCOL_VERSION_SNIPPETS} already send normalized snippets, then this is cheap.
+     */
+    @Nullable
+    public static String mapSnippet(@NotNull String snippet) {
+        return SnippetsKt.normalizeSnippet(snippet);
+    }
+
+}
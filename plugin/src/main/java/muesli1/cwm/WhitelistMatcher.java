@@ -0,0 +1,174 @@
+package muesli1.cwm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Decides whether a file is in one of the whitelisted directories of cwm.txt.
+ * The directories are resolved and checked once, and again after {@link #invalidate()},
+ * which should be called when the file system changes one of them (see {@link #affects(String)}).
+ * Safe to use from any thread.
+ */
+class WhitelistMatcher {
+
+    public static final int CACHE_SIZE = 4096;
+
+    /**
+     * The existing whitelisted directories, also as VirtualFile paths ending with "/".
+     */
+    private static final class Compiled {
+        private final List<Path> dirs;
+        private final String[] prefixes;
+
+        private Compiled(@NotNull List<Path> dirs) {
+            this.dirs = Collections.unmodifiableList(dirs);
+            this.prefixes = new String[dirs.size()];
+            for(int i = 0; i < prefixes.length; i++) {
+                prefixes[i] = toVirtualFilePath(dirs.get(i)) + "/";
+            }
+        }
+    }
+
+    @NotNull
+    private final Path basePath;
+    @NotNull
+    private final List<String> whitelist;
+    @NotNull
+    private final Consumer<String> errorReporter;
+    // Every configured directory, whether it exists or not, as VirtualFile paths
+    @NotNull
+    private final List<String> configuredPaths = new ArrayList<>();
+
+    private volatile Compiled compiled;
+
+    private final Map<Path, Boolean> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Object cacheMonitor = new Object();
+
+    public WhitelistMatcher(@NotNull Path basePath, @NotNull List<String> whitelist, @NotNull Consumer<String> errorReporter) {
+        this.basePath = basePath;
+        this.whitelist = whitelist;
+        this.errorReporter = errorReporter;
+
+        for(String s : whitelist) {
+            try {
+                configuredPaths.add(toVirtualFilePath(resolve(s)));
+            }
+            catch(InvalidPathException ignored) {
+                // Reported when compiled
+            }
+        }
+        this.compiled = compile();
+    }
+
+    @NotNull
+    private Path resolve(@NotNull String entry) {
+        return basePath.resolve(ProjectUserData.universalStringToPath(entry)).normalize();
+    }
+
+    @NotNull
+    private Compiled compile() {
+        final List<Path> dirs = new ArrayList<>();
+
+        for(String s : whitelist) {
+            try {
+                final Path fullPath = resolve(s);
+
+                if(!Files.isDirectory(fullPath)) {
+                    errorReporter.accept("Non existent directory: " + s);
+                }
+                else {
+                    dirs.add(fullPath);
+                }
+            }
+            catch(InvalidPathException e) {
+                errorReporter.accept("Invalid path: " + s);
+            }
+        }
+
+        return new Compiled(dirs);
+    }
+
+    /**
+     * Checks the whitelisted directories again and forgets all cached answers.
+     */
+    public void invalidate() {
+        final Compiled newCompiled = compile();
+        synchronized(cacheMonitor) {
+            compiled = newCompiled;
+            cache.clear();
+        }
+    }
+
+    /**
+     * Whether a change at the given VirtualFile path can create, remove or move a whitelisted directory.
+     */
+    public boolean affects(@NotNull String changedPath) {
+        for(String configured : configuredPaths) {
+            if(configured.equals(changedPath) || configured.startsWith(changedPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    public List<Path> getDirectories() {
+        return compiled.dirs;
+    }
+
+    /**
+     * Whether the file with the given VirtualFile path is in a whitelisted directory. Allocates nothing.
+     */
+    public boolean matches(@NotNull String virtualFilePath) {
+        for(String prefix : compiled.prefixes) {
+            if(virtualFilePath.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean matches(@NotNull Path file) {
+        final Compiled current;
+        synchronized(cacheMonitor) {
+            final Boolean cached = cache.get(file);
+            if(cached != null) {
+                return cached;
+            }
+            current = compiled;
+        }
+
+        final String path = toVirtualFilePath(file.normalize());
+        boolean result = false;
+        for(String prefix : current.prefixes) {
+            if(path.startsWith(prefix)) {
+                result = true;
+                break;
+            }
+        }
+
+        synchronized(cacheMonitor) {
+            // An answer for directories that were replaced in the meantime is not kept
+            if(compiled == current) {
+                cache.put(file, result);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    static String toVirtualFilePath(@NotNull Path path) {
+        return path.toString().replace(File.separatorChar, '/');
+    }
+}
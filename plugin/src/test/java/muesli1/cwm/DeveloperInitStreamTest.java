@@ -0,0 +1,56 @@
+package muesli1.cwm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class DeveloperInitStreamTest {
+
+    @Test
+    public void testBatches() throws IOException {
+        final Path dir = Files.createTempDirectory("cwm");
+        final List<Path> files = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(int i = 0; i < 20; i++) {
+                final Path file = dir.resolve("File" + i + ".java");
+                // Four files fill a batch
+                Files.writeString(file, "x".repeat((int) (DeveloperInitStream.MAX_BATCH_BYTES / 4)) + i);
+                files.add(file);
+            }
+
+            final DeveloperInitStream stream = new DeveloperInitStream(files, file -> file.getFileName().toString(), Files::readString, executor);
+            final Map<String, String> received = new HashMap<>();
+            int batches = 0;
+            while(stream.hasNext()) {
+                final DeveloperInitBatchPacket batch = stream.next();
+                assertTrue(batch.getCode().size() <= 4);
+                received.putAll(batch.getCode());
+                assertEquals(received.size(), batch.getSentFiles());
+                assertEquals(20, batch.getTotalFiles());
+                batches++;
+            }
+
+            assertEquals(5, batches);
+            assertEquals(20, received.size());
+            assertTrue(received.get("File7.java").endsWith("7"));
+        }
+        finally {
+            executor.shutdown();
+            for(Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
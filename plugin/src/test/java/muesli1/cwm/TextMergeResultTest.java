@@ -0,0 +1,106 @@
+package muesli1.cwm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextMergeResultTest {
+
+    private static final String[] LINES = {
+            "",
+            "    ",
+            "class Main {",
+            "    int x = 5;",
+            "    // <USER CODE>",
+            "    // </USER CODE>",
+            "// <USER CODE> // </USER CODE>",
+            "// </USER CODE> // <USER CODE>",
+            "<USER CODE",
+            "/USER CODE>",
+            "\tif(x) { return; }",
+            "}"
+    };
+
+    private static void assertSameAsLegacy(String currentText, String expectedText) {
+        final TextMergeResult legacy = LegacyTextMerge.mergeTexts(currentText, expectedText);
+        final TextMergeResult result = TextMergeResult.mergeTexts(currentText, expectedText);
+
+        final String message = "current=" + currentText.replace("\n", "\\n") + " expected=" + expectedText.replace("\n", "\\n");
+        assertEquals(message, legacy.getText(), result.getText());
+        assertEquals(message, legacy.getUserCode(), result.getUserCode());
+    }
+
+    @Test
+    public void testEdgeCases() {
+        final String[] texts = {
+                "",
+                "\n",
+                "\n\n",
+                "a\n\n",
+                "\na",
+                "// <USER CODE>\n// </USER CODE>",
+                "// <USER CODE>\n\n// </USER CODE>",
+                "// <USER CODE>\n\n\n// </USER CODE>\n\n",
+                "a\n// <USER CODE>\nuser\n// </USER CODE>\nb",
+                "a\n// <USER CODE>\nuser\ncode\n// </USER CODE>\nb\n// <USER CODE>\n// </USER CODE>\n",
+                "// <USER CODE>\n// <USER CODE>\nx\n// </USER CODE>\n// </USER CODE>",
+                "// </USER CODE>\n// <USER CODE>\nx",
+                "// <USER CODE> // </USER CODE>\nx\n// </USER CODE>"
+        };
+
+        for(String current : texts) {
+            for(String expected : texts) {
+                assertSameAsLegacy(current, expected);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomTexts() {
+        final Random random = new Random(7);
+
+        for(int i = 0; i < 20000; i++) {
+            final String expected = randomText(random);
+            final String current = random.nextInt(4) == 0? randomText(random) : mutate(random, expected);
+            assertSameAsLegacy(current, expected);
+        }
+    }
+
+    @Test
+    public void testUserCodeIsKept() {
+        final String expected = "class A {\n    // <USER CODE>\n    // </USER CODE>\n}";
+        final String current = "class B {\n    // <USER CODE>\n    return 5;\n    // </USER CODE>\n}\n";
+
+        final TextMergeResult result = TextMergeResult.mergeTexts(current, expected);
+        assertEquals("class A {\n    // <USER CODE>\n    return 5;\n    // </USER CODE>\n}", result.getText());
+        assertEquals(List.of("    return 5;"), result.getUserCode());
+    }
+
+    private static String randomText(Random random) {
+        final List<String> lines = new ArrayList<>();
+        final int count = random.nextInt(12);
+        for(int i = 0; i < count; i++) {
+            lines.add(LINES[random.nextInt(LINES.length)]);
+        }
+        return String.join("\n", lines) + "\n".repeat(random.nextInt(3));
+    }
+
+    private static String mutate(Random random, String text) {
+        final StringBuilder builder = new StringBuilder(text);
+        final int changes = random.nextInt(4);
+        for(int i = 0; i < changes; i++) {
+            final int position = random.nextInt(builder.length() + 1);
+            if(random.nextBoolean() && position < builder.length()) {
+                builder.deleteCharAt(position);
+            }
+            else {
+                builder.insert(position, random.nextBoolean()? "\n" : "x");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package muesli1.cwm;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UserCodeIndexTest {
+
+    @Test
+    public void testResolve() {
+        final UserCodeIndex index = new UserCodeIndex();
+        final Map<String, Map<Integer, List<String>>> code = new HashMap<>();
+        for(String path : Arrays.asList("src/Main.java", "src/DomainMain.java", "test/Main.java", "src/util/Helper.java")) {
+            code.put(path, Collections.singletonMap(1, Collections.singletonList("return 1;")));
+        }
+        index.reset(code);
+
+        assertEquals(Arrays.asList("src/DomainMain.java", "src/Main.java", "test/Main.java"), index.resolve("Main"));
+        assertEquals(Collections.singletonList("src/Main.java"), index.resolve("src/Main"));
+        assertEquals(Collections.singletonList("src/util/Helper.java"), index.resolve("util/Help"));
+        assertEquals(Collections.singletonList("src/DomainMain.java"), index.resolve("ainMain"));
+        assertTrue(index.resolve("Missing").isEmpty());
+
+        // New paths are found by filters that were resolved before
+        index.update("lib/Main.kt", 1, null, Collections.singletonList("return 2;"));
+        assertEquals(Arrays.asList("lib/Main.kt", "src/DomainMain.java", "src/Main.java", "test/Main.java"), index.resolve("Main"));
+        index.update("src/Main.java", 1, Collections.singletonList("return 1;"), null);
+        index.update("src/Main2.java", 1, null, Collections.singletonList("return 3;"));
+        assertEquals(Arrays.asList("lib/Main.kt", "src/DomainMain.java", "src/Main2.java", "test/Main.java"), index.resolve("Main"));
+    }
+
+    @Test
+    public void testUpdate() {
+        final UserCodeIndex index = new UserCodeIndex();
+        index.update("src/Main.java", 1, null, Arrays.asList("a", "b"));
+        index.update("src/Main.java", 2, null, Arrays.asList("a", "c"));
+        assertEquals(Arrays.asList("b", "c"), sorted(index.collect("src/Main.java", 1)));
+
+        final List<String> before = index.collect("src/Main.java", 1);
+        index.update("src/Main.java", 2, Arrays.asList("a", "c"), Collections.singletonList("d"));
+        assertEquals(Arrays.asList("b", "c"), sorted(before));
+        assertEquals(Collections.singletonList("b"), index.collect("src/Main.java", 1));
+        assertEquals(Arrays.asList("a", "d"), sorted(index.collect("src/Main.java", 0)));
+
+        index.update("src/Main.java", 1, Arrays.asList("a", "b"), null);
+        index.update("src/Main.java", 2, Collections.singletonList("d"), null);
+        assertTrue(index.resolve("Main").isEmpty());
+        assertTrue(index.collect("src/Main.java", 0).isEmpty());
+    }
+
+    private static List<String> sorted(List<String> list) {
+        final List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+}
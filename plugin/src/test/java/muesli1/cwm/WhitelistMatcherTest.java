@@ -0,0 +1,40 @@
+package muesli1.cwm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WhitelistMatcherTest {
+
+    @Test
+    public void testMatches() throws IOException {
+        final Path base = Files.createTempDirectory("cwm");
+        Files.createDirectories(base.resolve("src/main"));
+        final List<String> errors = new ArrayList<>();
+        final WhitelistMatcher matcher = new WhitelistMatcher(base, Arrays.asList("src/main", "missing"), errors::add);
+
+        assertEquals(List.of("Non existent directory: missing"), errors);
+        assertTrue(matcher.matches(base.resolve("src/main/Main.java")));
+        assertTrue(matcher.matches(base.resolve("src/main/deep/Main.java")));
+        assertFalse(matcher.matches(base.resolve("src/mainly/Main.java")));
+        assertFalse(matcher.matches(base.resolve("src/main")));
+        assertTrue(matcher.matches(WhitelistMatcher.toVirtualFilePath(base.resolve("src/main/Main.java"))));
+
+        // The missing directory only counts once the file system told about it
+        Files.createDirectories(base.resolve("missing"));
+        assertFalse(matcher.matches(base.resolve("missing/Main.java")));
+        assertTrue(matcher.affects(WhitelistMatcher.toVirtualFilePath(base.resolve("missing"))));
+        assertTrue(matcher.affects(WhitelistMatcher.toVirtualFilePath(base)));
+        assertFalse(matcher.affects(WhitelistMatcher.toVirtualFilePath(base.resolve("src/main/Main.java"))));
+
+        matcher.invalidate();
+        assertTrue(matcher.matches(base.resolve("missing/Main.java")));
+    }
+}
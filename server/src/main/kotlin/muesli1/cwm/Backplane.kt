@@ -0,0 +1,319 @@
+package muesli1.cwm
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.cbor.Cbor
+import java.io.*
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.security.MessageDigest
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+private const val NODE_ID_SHIFT = 24
+private const val MAX_FRAME_BYTES = 64 * 1024 * 1024
+private const val RECONNECT_MILLIS = 1000L
+private const val HANDSHAKE_TIMEOUT_MILLIS = 10_000
+
+/**
+ * Connection ids of a node start here, so ids of different nodes never collide.
+ */
+fun firstConnectionId(node: Int): Int {
+    require(node in 0 until (1 shl (31 - NODE_ID_SHIFT))) { "Invalid node id $node" }
+    return node shl NODE_ID_SHIFT
+}
+
+fun connectionNode(connectionId: Int): Int = connectionId ushr NODE_ID_SHIFT
+
+@Serializable
+sealed class BackplaneMessage
+
+// A change the publishing node made. Other nodes apply it like a replayed record and tell their connections
+@Serializable
+data class RecordMessage(val record: StoreRecord) : BackplaneMessage()
+
+// A user connection of the publishing node closed, so the retention policy applies to its code
+@Serializable
+data class ConnectionClosedMessage(val room: String, val connectionId: Int) : BackplaneMessage()
+
+// A patch did not fit, the node of the developer answers with the full text
+@Serializable
+data class TextRequestMessage(val room: String, val path: String) : BackplaneMessage()
+
+// A node (re)joined and may have missed messages, every node publishes what it owns again
+@Serializable
+object SyncRequestMessage : BackplaneMessage()
+
+/**
+ * Connects the server nodes of one deployment. A message is delivered to every other node,
+ * in the order it was published, but never back to the node that published it.
+ * [publish] must not block, rooms call it while holding their write locks.
+ */
+interface Backplane {
+    /**
+     * [receiver] is called on a single thread per backplane. A [SyncRequestMessage] is delivered
+     * to it whenever the node (re)connected, so it publishes its own state.
+     */
+    fun start(receiver: (BackplaneMessage) -> Unit)
+
+    fun publish(message: BackplaneMessage)
+
+    fun close()
+}
+
+/**
+ * Nodes that share one JVM, e.g. in tests and the load test.
+ */
+class InProcessBus {
+    private val nodes: MutableList<Node> = CopyOnWriteArrayList()
+
+    private inner class Node : Backplane {
+        private val executor: ExecutorService = Executors.newSingleThreadExecutor {
+            Thread(it, "cwm-backplane").apply { isDaemon = true }
+        }
+
+        @Volatile
+        private var receiver: ((BackplaneMessage) -> Unit)? = null
+
+        override fun start(receiver: (BackplaneMessage) -> Unit) {
+            this.receiver = receiver
+            publish(SyncRequestMessage)
+            deliver(SyncRequestMessage)
+        }
+
+        override fun publish(message: BackplaneMessage) {
+            ServerMetrics.backplaneOut.increment()
+            nodes.forEach {
+                if (it !== this) {
+                    it.deliver(message)
+                }
+            }
+        }
+
+        fun deliver(message: BackplaneMessage) {
+            executor.execute {
+                val receiver = receiver ?: return@execute
+                ServerMetrics.backplaneIn.increment()
+                try {
+                    receiver(message)
+                } catch (e: Exception) {
+                    logger.error("Could not apply backplane message", e)
+                }
+            }
+        }
+
+        override fun close() {
+            nodes.remove(this)
+            executor.shutdown()
+            executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+
+    fun join(): Backplane = Node().also { nodes.add(it) }
+}
+
+@OptIn(ExperimentalSerializationApi::class)
+private fun encodeFrame(message: BackplaneMessage): ByteArray = Cbor.encodeToByteArray(BackplaneMessage.serializer(), message)
+
+@OptIn(ExperimentalSerializationApi::class)
+private fun decodeFrame(bytes: ByteArray): BackplaneMessage = Cbor.decodeFromByteArray(BackplaneMessage.serializer(), bytes)
+
+private fun readFrame(input: DataInputStream): ByteArray? {
+    val length = try {
+        input.readInt()
+    } catch (e: EOFException) {
+        return null
+    }
+    if (length < 0 || length > MAX_FRAME_BYTES) {
+        throw IOException("Invalid backplane frame of $length bytes")
+    }
+    return ByteArray(length).also { input.readFully(it) }
+}
+
+/**
+ * Writes queued frames on its own thread, so publishing never waits for the socket.
+ */
+private class FrameWriter(socket: Socket, name: String, onFailure: () -> Unit) {
+    private val queue = LinkedBlockingQueue<ByteArray>()
+    private val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream(), 1 shl 16))
+
+    private val writer = thread(name = name, isDaemon = true) {
+        try {
+            while (true) {
+                val frame = queue.take()
+                output.writeInt(frame.size)
+                output.write(frame)
+                if (queue.isEmpty()) {
+                    output.flush()
+                }
+            }
+        } catch (e: InterruptedException) {
+            // Closed
+        } catch (e: IOException) {
+            onFailure()
+        }
+    }
+
+    fun send(frame: ByteArray) {
+        queue.add(frame)
+    }
+
+    fun close() {
+        writer.interrupt()
+    }
+}
+
+/**
+ * Relays every frame to all other [TcpBackplane]s connected to it. Runs in one of the nodes or on its own.
+ * A node must send the [secret] as its first frame, otherwise it is disconnected before it sees or sends anything.
+ */
+class TcpBackplaneHub(port: Int, secret: String, host: String = "127.0.0.1") : Closeable {
+    private val secret = secret.toByteArray()
+    private val server = ServerSocket().apply { bind(InetSocketAddress(host, port)) }
+    private val peers: MutableList<Peer> = CopyOnWriteArrayList()
+
+    val port: Int
+        get() = server.localPort
+
+    val connectedNodes: Int
+        get() = peers.size
+
+    private inner class Peer(val socket: Socket) {
+        val writer = FrameWriter(socket, "cwm-backplane-hub-writer") { close() }
+
+        fun read() {
+            try {
+                val input = DataInputStream(BufferedInputStream(socket.getInputStream(), 1 shl 16))
+                socket.soTimeout = HANDSHAKE_TIMEOUT_MILLIS
+                if (!MessageDigest.isEqual(readFrame(input), secret)) {
+                    logger.warn("Rejected backplane node ${socket.remoteSocketAddress}: wrong secret")
+                    return
+                }
+                socket.soTimeout = 0
+                peers.add(this)
+
+                while (true) {
+                    val frame = readFrame(input) ?: break
+                    peers.forEach {
+                        if (it !== this) {
+                            it.writer.send(frame)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                // Node went away
+            } finally {
+                close()
+            }
+        }
+
+        fun close() {
+            peers.remove(this)
+            writer.close()
+            socket.close()
+        }
+    }
+
+    init {
+        thread(name = "cwm-backplane-hub", isDaemon = true) {
+            while (!server.isClosed) {
+                val socket = try {
+                    server.accept()
+                } catch (e: IOException) {
+                    break
+                }
+                socket.tcpNoDelay = true
+                val peer = Peer(socket)
+                thread(name = "cwm-backplane-hub-reader", isDaemon = true) { peer.read() }
+            }
+        }
+        logger.info("Backplane hub listening on $host:$port")
+    }
+
+    override fun close() {
+        server.close()
+        peers.forEach { it.close() }
+    }
+}
+
+/**
+ * Node side of a [TcpBackplaneHub]. Reconnects after the connection was lost; messages published
+ * in the meantime are dropped, the [SyncRequestMessage] after reconnecting makes up for them.
+ */
+class TcpBackplane(private val host: String, private val port: Int, private val secret: String) : Backplane {
+    @Volatile
+    private var closed = false
+    @Volatile
+    private var writer: FrameWriter? = null
+    @Volatile
+    private var socket: Socket? = null
+
+    override fun start(receiver: (BackplaneMessage) -> Unit) {
+        thread(name = "cwm-backplane", isDaemon = true) {
+            while (!closed) {
+                try {
+                    run(receiver)
+                } catch (e: IOException) {
+                    if (!closed) {
+                        logger.warn("Lost backplane connection to $host:$port: ${e.message}")
+                    }
+                }
+                writer?.close()
+                writer = null
+                if (!closed) {
+                    Thread.sleep(RECONNECT_MILLIS)
+                }
+            }
+        }
+    }
+
+    private fun run(receiver: (BackplaneMessage) -> Unit) {
+        val socket = Socket(host, port).also { socket = it }
+        socket.use {
+            socket.tcpNoDelay = true
+            writer = FrameWriter(socket, "cwm-backplane-writer") { socket.close() }.also {
+                it.send(secret.toByteArray())
+            }
+            logger.info("Connected to backplane $host:$port")
+
+            publish(SyncRequestMessage)
+            receiver(SyncRequestMessage)
+
+            val input = DataInputStream(BufferedInputStream(socket.getInputStream(), 1 shl 16))
+            while (true) {
+                val frame = readFrame(input) ?: return
+                ServerMetrics.backplaneIn.increment()
+                try {
+                    receiver(decodeFrame(frame))
+                } catch (e: Exception) {
+                    logger.error("Could not apply backplane message", e)
+                }
+            }
+        }
+    }
+
+    override fun publish(message: BackplaneMessage) {
+        val writer = writer ?: return
+        ServerMetrics.backplaneOut.increment()
+        writer.send(encodeFrame(message))
+    }
+
+    override fun close() {
+        closed = true
+        writer?.close()
+        socket?.close()
+    }
+
+    companion object {
+        fun connect(address: String, secret: String): TcpBackplane {
+            val split = address.lastIndexOf(':')
+            require(split > 0) { "Expected host:port, got '$address'" }
+            return TcpBackplane(address.substring(0, split), address.substring(split + 1).toInt(), secret)
+        }
+    }
+}
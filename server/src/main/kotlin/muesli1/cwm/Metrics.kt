@@ -0,0 +1,160 @@
+package muesli1.cwm
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+enum class KickReason {
+    WRONG_ROLE,
+    USER_CODE_TOO_LONG,
+    PATH_TOO_LONG,
+    UNEXPECTED_PACKET,
+    SLOW_CONSUMER
+}
+
+/**
+ * Latency histogram with fixed buckets. Recording only touches [LongAdder]s.
+ */
+class LatencyHistogram {
+    private val bounds = BUCKET_SECONDS.map { (it * 1e9).toLong() }.toLongArray()
+    private val buckets = Array(bounds.size + 1) { LongAdder() }
+    private val sumNanos = LongAdder()
+
+    fun record(nanos: Long) {
+        var index = 0
+        while (index < bounds.size && nanos > bounds[index]) {
+            index++
+        }
+        buckets[index].increment()
+        sumNanos.add(nanos)
+    }
+
+    fun recordSince(startNanos: Long) {
+        record(System.nanoTime() - startNanos)
+    }
+
+    fun render(builder: StringBuilder, name: String, help: String) {
+        builder.append("# HELP $name $help\n# TYPE $name histogram\n")
+        var cumulative = 0L
+        BUCKET_SECONDS.forEachIndexed { index, bound ->
+            cumulative += buckets[index].sum()
+            builder.append("${name}_bucket{le=\"$bound\"} $cumulative\n")
+        }
+        cumulative += buckets[bounds.size].sum()
+        builder.append("${name}_bucket{le=\"+Inf\"} $cumulative\n")
+        builder.append("${name}_sum ${sumNanos.sum() / 1e9}\n")
+        builder.append("${name}_count $cumulative\n")
+    }
+
+    companion object {
+        private val BUCKET_SECONDS = doubleArrayOf(
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0
+        )
+    }
+}
+
+/**
+ * Counters of the hot paths. Everything is recorded without locks, rooms are only asked
+ * for their current sizes when the metrics are scraped.
+ */
+object ServerMetrics {
+    private val packetsIn: MutableMap<String, LongAdder> = ConcurrentHashMap()
+    private val packetsOut: MutableMap<String, LongAdder> = ConcurrentHashMap()
+    private val kicks = Array(KickReason.values().size) { LongAdder() }
+
+    val bytesIn = LongAdder()
+    val bytesOut = LongAdder()
+    val syncSkippedFiles = LongAdder()
+    val userCodeEvictedByPolicy = LongAdder()
+    val userCodeEvictedByMemory = LongAdder()
+    val backplaneIn = LongAdder()
+    val backplaneOut = LongAdder()
+
+    // From receiving a packet until its room has processed it, including the wait in the inbound queue
+    val processing = LatencyHistogram()
+    // From queueing a packet for a connection until it was written to the socket
+    val fanOut = LatencyHistogram()
+
+    fun receivedPacket(packet: Packet, bytes: Int) {
+        counter(packetsIn, packet).increment()
+        bytesIn.add(bytes.toLong())
+    }
+
+    fun sentPacket(packet: Packet, bytes: Int) {
+        counter(packetsOut, packet).increment()
+        bytesOut.add(bytes.toLong())
+    }
+
+    fun kicked(reason: KickReason) {
+        kicks[reason.ordinal].increment()
+    }
+
+    private fun counter(counters: MutableMap<String, LongAdder>, packet: Packet): LongAdder {
+        val type = packet::class.java.simpleName
+        // Only the first packet of each type has to create the adder
+        return counters[type] ?: counters.computeIfAbsent(type) { LongAdder() }
+    }
+
+    /**
+     * Prometheus text exposition format.
+     */
+    fun render(rooms: RoomRegistry): String {
+        val builder = StringBuilder()
+        val stats = rooms.all.map { it.stats() }
+
+        gauge(builder, "cwm_connections", "Live connections", stats.flatMap {
+            listOf("room=\"${escape(it.room)}\",role=\"user\"" to it.users, "room=\"${escape(it.room)}\",role=\"developer\"" to it.developers)
+        })
+        gauge(builder, "cwm_inbound_queue_depth", "Packets waiting for their room", stats.map {
+            "room=\"${escape(it.room)}\"" to it.inboundQueueDepth
+        })
+        gauge(builder, "cwm_outbound_queue_depth", "Packets waiting to be written", stats.map {
+            "room=\"${escape(it.room)}\"" to it.outboundQueueDepth
+        })
+        gauge(builder, "cwm_developer_code_files", "Files in developerCode", stats.map { "room=\"${escape(it.room)}\"" to it.developerFiles })
+        gauge(builder, "cwm_developer_code_chars", "Characters in developerCode", stats.map { "room=\"${escape(it.room)}\"" to it.developerChars })
+        gauge(builder, "cwm_user_code_entries", "Path and user pairs in userCode", stats.map { "room=\"${escape(it.room)}\"" to it.userCodeEntries })
+        gauge(builder, "cwm_user_code_retained_bytes", "Estimated heap used by userCode", stats.map { "room=\"${escape(it.room)}\"" to it.userCodeBytes })
+
+        counter(builder, "cwm_packets_received_total", "Packets received by type", packetsIn.map { "type=\"${it.key}\"" to it.value.sum() })
+        counter(builder, "cwm_packets_sent_total", "Packets sent by type", packetsOut.map { "type=\"${it.key}\"" to it.value.sum() })
+        counter(builder, "cwm_received_bytes_total", "Frame payload bytes received before decompression", listOf("" to bytesIn.sum()))
+        counter(builder, "cwm_sent_bytes_total", "Frame payload bytes sent before compression", listOf("" to bytesOut.sum()))
+        counter(builder, "cwm_kicks_total", "Kicked connections by reason", KickReason.values().map {
+            "reason=\"${it.name.lowercase()}\"" to kicks[it.ordinal].sum()
+        })
+        counter(builder, "cwm_sync_skipped_files_total", "Files joining users already had", listOf("" to syncSkippedFiles.sum()))
+        counter(builder, "cwm_user_code_evicted_total", "Connections whose user code was evicted", listOf(
+            "reason=\"policy\"" to userCodeEvictedByPolicy.sum(), "reason=\"memory\"" to userCodeEvictedByMemory.sum()
+        ))
+        counter(builder, "cwm_backplane_messages_total", "Messages exchanged with other nodes", listOf(
+            "direction=\"in\"" to backplaneIn.sum(), "direction=\"out\"" to backplaneOut.sum()
+        ))
+        counter(builder, "cwm_outbound_dropped_total", "Packets dropped for slow connections", listOf("" to OutboundMetrics.dropped.get()))
+        counter(builder, "cwm_outbound_resyncs_total", "Queues replaced by a resync", listOf("" to OutboundMetrics.resyncs.get()))
+
+        processing.render(builder, "cwm_packet_processing_seconds", "Time from receiving a packet until it was processed")
+        fanOut.render(builder, "cwm_fanout_seconds", "Time from queueing a packet until it was written")
+        return builder.toString()
+    }
+
+    private fun gauge(builder: StringBuilder, name: String, help: String, values: List<Pair<String, Number>>) {
+        sample(builder, name, help, "gauge", values)
+    }
+
+    private fun counter(builder: StringBuilder, name: String, help: String, values: List<Pair<String, Number>>) {
+        sample(builder, name, help, "counter", values)
+    }
+
+    private fun sample(builder: StringBuilder, name: String, help: String, type: String, values: List<Pair<String, Number>>) {
+        builder.append("# HELP $name $help\n# TYPE $name $type\n")
+        values.forEach {
+            if (it.first.isEmpty()) {
+                builder.append("$name ${it.second}\n")
+            } else {
+                builder.append("$name{${it.first}} ${it.second}\n")
+            }
+        }
+    }
+
+    private fun escape(value: String) = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+}
@@ -0,0 +1,43 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Processes submitted items in order on a single coroutine.
+ * The coroutine suspends on the channel and only wakes up when there is work.
+ */
+class PacketDispatcher<T>(scope: CoroutineScope, private val process: suspend (T) -> Unit) {
+
+    private val queue = Channel<T>(Channel.UNLIMITED)
+    private val depth = AtomicInteger(0)
+
+    private val job = scope.launch {
+        for (item in queue) {
+            depth.decrementAndGet()
+            process(item)
+        }
+    }
+
+    val queueDepth: Int
+        get() = depth.get()
+
+    fun submit(item: T): Boolean {
+        depth.incrementAndGet()
+        if (queue.trySend(item).isSuccess) {
+            return true
+        }
+        depth.decrementAndGet()
+        return false
+    }
+
+    fun close() {
+        queue.close()
+    }
+
+    suspend fun join() {
+        job.join()
+    }
+}
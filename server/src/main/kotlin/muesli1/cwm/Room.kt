@@ -0,0 +1,589 @@
+package muesli1.cwm
+
+import kotlinx.collections.immutable.PersistentMap
+import kotlinx.collections.immutable.persistentMapOf
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Users that do not ask for a room join this one. If it is not set,
+ * they join the room of the developer that connected last.
+ */
+val DEFAULT_ROOM: String? = System.getenv("DEFAULT_ROOM")
+const val FALLBACK_ROOM = "default"
+
+/**
+ * Work of a room that runs on its dispatcher, one at a time and in the order it was submitted.
+ */
+sealed class RoomEvent
+
+class InboundPacket(val connection: ClientConnection, val packet: Packet, val receivedNanos: Long = System.nanoTime()) : RoomEvent()
+
+// Changes that do not come from a packet of this node but must be ordered with them
+private class RoomTask(val run: () -> Unit) : RoomEvent()
+
+/**
+ * Developer texts plus the textHash of each, so joining users can be compared without hashing.
+ */
+private class DeveloperCode(val texts: PersistentMap<String, String>, val hashes: PersistentMap<String, Long>)
+
+class RoomStats(
+    val room: String,
+    val users: Int,
+    val developers: Int,
+    val inboundQueueDepth: Int,
+    val outboundQueueDepth: Int,
+    val developerFiles: Int,
+    val developerChars: Long,
+    val userCodeEntries: Int,
+    val userCodeBytes: Long
+)
+
+/**
+ * All rooms of one server. Rooms share nothing but the coroutine scope. Developers create them,
+ * users can only join existing ones, and a room is removed once nobody is connected and it has no developer texts.
+ */
+class RoomRegistry(
+    private val scope: CoroutineScope,
+    private val store: SessionStore? = null,
+    private val retention: UserCodeRetentionSettings = UserCodeRetentionSettings(),
+    private val backplane: Backplane? = null
+) {
+    private val rooms: MutableMap<String, Room> = ConcurrentHashMap()
+
+    @Volatile
+    private var latestDeveloperRoom: String? = null
+
+    fun get(name: String): Room {
+        return rooms.computeIfAbsent(name) { create(it) }
+    }
+
+    private fun create(name: String): Room {
+        logger.info("Created room '$name'")
+        return Room(name, scope, store, retention, backplane)
+    }
+
+    /**
+     * The connection must [release] the room again when it closes.
+     */
+    private fun acquire(name: String): Room {
+        return rooms.compute(name) { _, room -> (room ?: create(name)).also { it.holders += 1 } }!!
+    }
+
+    fun release(room: Room) {
+        rooms.computeIfPresent(room.name) { _, current ->
+            if (current !== room) {
+                current
+            } else {
+                room.holders -= 1
+                if (room.holders == 0 && !room.hasDeveloperCode()) {
+                    room.close()
+                    logger.info("Removed room '${room.name}'")
+                    null
+                } else {
+                    room
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns null if the requested room does not exist (yet). Unknown names are not created, any client
+     * could fill the server with rooms otherwise, and users must not end up with another developer's files.
+     */
+    fun forUser(requestedRoom: String?): Room? {
+        if (requestedRoom == null) {
+            return acquire(DEFAULT_ROOM ?: latestDeveloperRoom ?: FALLBACK_ROOM)
+        }
+        if (!rooms.containsKey(requestedRoom)) {
+            return null
+        }
+        return acquire(requestedRoom)
+    }
+
+    fun forDeveloper(initPacket: DeveloperInitPacket): Room {
+        latestDeveloperRoom = initPacket.projectName
+        return acquire(initPacket.projectName)
+    }
+
+    val all: Collection<Room>
+        get() = rooms.values
+
+    /**
+     * Called on the backplane thread for every message of another node.
+     */
+    fun applyRemote(message: BackplaneMessage) {
+        when (message) {
+            is RecordMessage -> get(message.record.room).applyRemote(message.record)
+            is ConnectionClosedMessage -> get(message.room).remoteConnectionClosed(message.connectionId)
+            is TextRequestMessage -> rooms[message.room]?.answerTextRequest(message.path)
+            is SyncRequestMessage -> all.forEach { it.publishOwned() }
+        }
+    }
+}
+
+/**
+ * The state of one project. Every room processes its packets on its own dispatcher
+ * and has its own locks, so rooms never wait for each other.
+ */
+class Room(
+    val name: String,
+    scope: CoroutineScope,
+    private val store: SessionStore? = null,
+    retention: UserCodeRetentionSettings = UserCodeRetentionSettings(),
+    private val backplane: Backplane? = null
+) {
+
+    private val connections: MutableList<ClientConnection> = mutableListOf()
+    private val userCode = UserCodeState(name, retention, store, backplane)
+    // Path ids of the binary connections in this room, so broadcasts are encoded once for all of them
+    val sharedPaths = SharedPathDictionary()
+
+    // Readers take the current value without locking, writers replace it while holding developerCodeWriteLock
+    @Volatile
+    private var developerCode = DeveloperCode(persistentMapOf(), persistentMapOf())
+
+    private val connectionsLock = Object()
+    // Connections that acquired the room, only changed by the RoomRegistry while it holds the map entry
+    internal var holders = 0
+    // Only writers take these, so the store log has the same order as the published states
+    private val userCodeWriteLock = Object()
+    private val developerCodeWriteLock = Object()
+
+    // User code deltas are only created and sent here, so developers receive their sequences in order
+    val dispatcher = PacketDispatcher<RoomEvent>(scope) {
+        when (it) {
+            is InboundPacket -> {
+                processPacket(it.connection, it.packet)
+                ServerMetrics.processing.recordSince(it.receivedNanos)
+            }
+
+            is RoomTask -> try {
+                it.run()
+            } catch (e: Exception) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    private val sweeper: Job? = if (retention.policy == UserCodeRetention.TTL) {
+        scope.launch {
+            while (isActive) {
+                delay(USER_CODE_SWEEP_MILLIS)
+                evictUserCode()
+            }
+        }
+    } else {
+        null
+    }
+
+    fun hasDeveloperCode(): Boolean = developerCode.texts.isNotEmpty()
+
+    /**
+     * Stops the dispatcher once it processed everything submitted so far.
+     */
+    fun close() {
+        sweeper?.cancel()
+        dispatcher.close()
+    }
+
+    fun processDeveloperInit(initPacket: DeveloperInitPacket) {
+        logger.info("Init Server '${initPacket.projectName}'")
+
+        setDeveloperTexts(initPacket.code)
+    }
+
+    private fun setDeveloperTexts(code: Map<String, String>) {
+        synchronized(developerCodeWriteLock) {
+            code.forEach {
+                setDeveloperText(it.key, it.value)
+                log(DeveloperTextRecord(name, it.key, it.value))
+            }
+        }
+        code.forEach {
+            sendTo({ !it.isDeveloper }, DeveloperUpdatePacket(it.key, it.value))
+        }
+    }
+
+    /**
+     * Texts for a joining user, leaving out those the user already has according to [knownHashes].
+     */
+    fun createDeveloperSnapshot(knownHashes: Map<String, Long> = emptyMap()): List<DeveloperUpdatePacket> {
+        val current = developerCode
+        val copy = if (knownHashes.isEmpty()) {
+            current.texts
+        } else {
+            current.texts.filterKeys { knownHashes[it] != current.hashes[it] }.also {
+                ServerMetrics.syncSkippedFiles.add((current.texts.size - it.size).toLong())
+            }
+        }
+        return copy.map { DeveloperUpdatePacket(it.key, it.value) }
+    }
+
+    /**
+     * Must be called while holding the write lock of the change, so the log and other nodes see the same order.
+     */
+    private fun log(record: StoreRecord) {
+        store?.append(record)
+        backplane?.publish(RecordMessage(record))
+    }
+
+    /**
+     * Must be called while holding developerCodeWriteLock.
+     */
+    private fun setDeveloperText(path: String, text: String, hash: Long = textHash(text)) {
+        val current = developerCode
+        developerCode = DeveloperCode(current.texts.put(path, text), current.hashes.put(path, hash))
+    }
+
+    fun restore(snapshot: RoomSnapshot) {
+        synchronized(developerCodeWriteLock) {
+            val texts = developerCode.texts.builder()
+            val hashes = developerCode.hashes.builder()
+            snapshot.developerCode.forEach {
+                texts[it.key] = it.value
+                hashes[it.key] = textHash(it.value)
+            }
+            developerCode = DeveloperCode(texts.build(), hashes.build())
+        }
+        synchronized(userCodeWriteLock) {
+            userCode.restore(snapshot)
+        }
+    }
+
+    fun replay(record: StoreRecord) {
+        when (record) {
+            is DeveloperTextRecord -> synchronized(developerCodeWriteLock) {
+                setDeveloperText(record.path, record.text)
+            }
+
+            is DeveloperPatchRecord -> synchronized(developerCodeWriteLock) {
+                applyDeveloperPatch(record.path, record.baseHash, record.hash, record.edits)
+            }
+
+            is UserCodeRecord, is UserCodeRemovedRecord -> synchronized(userCodeWriteLock) {
+                userCode.replay(record)
+            }
+        }
+    }
+
+    /**
+     * Shares all data with the live state, so it costs the same no matter how big the room is.
+     */
+    fun snapshot(): RoomSnapshot {
+        val view = userCode.view
+        return RoomSnapshot(name, developerCode.texts, view.code, view.sequence)
+    }
+
+    /**
+     * Must be called while holding developerCodeWriteLock. Returns the new text or null if the patch does not fit.
+     */
+    private fun applyDeveloperPatch(path: String, baseHash: Long, hash: Long, edits: List<TextEdit>): String? {
+        val current = developerCode.texts[path]
+        val patched = if (current != null && textHash(current) == baseHash) {
+            applyTextEdits(current, edits)
+        } else {
+            null
+        }
+
+        if (patched == null || textHash(patched) != hash) {
+            return null
+        }
+        setDeveloperText(path, patched, hash)
+        return patched
+    }
+
+    fun stats(): RoomStats {
+        val (users, developers, outbound) = synchronized(connectionsLock) {
+            val developerCount = connections.count { it.isDeveloper }
+            Triple(connections.size - developerCount, developerCount, connections.sumOf { it.outboundQueueDepth })
+        }
+        val texts = developerCode.texts
+        val view = userCode.view
+        return RoomStats(
+            name, users, developers, dispatcher.queueDepth, outbound,
+            texts.size, texts.values.sumOf { it.length.toLong() }, view.entries, view.retainedBytes
+        )
+    }
+
+    fun sendTo(predicate: (ClientConnection) -> Boolean, packet: Packet) {
+        val toList = synchronized(connectionsLock) {
+            connections.filter(predicate).toList()
+        }
+        val broadcast = BroadcastPacket(packet)
+        toList.forEach {
+            it.send(broadcast)
+        }
+    }
+
+    private fun printConnectionInfo(info: String) {
+        val developerCount = connections.count { it.isDeveloper }
+        val userCount = connections.size - developerCount
+        val queued = connections.sumOf { it.outboundQueueDepth }
+        val maxQueued = connections.maxOfOrNull { it.outboundQueueDepth } ?: 0
+
+        logger.info("$info Live connections in '$name': $userCount users and $developerCount developers")
+        logger.info(
+            "Outbound queues: $queued queued (max $maxQueued), ${OutboundMetrics.dropped.get()} dropped, " +
+                    "${OutboundMetrics.resyncs.get()} resyncs, ${OutboundMetrics.disconnected.get()} disconnects"
+        )
+    }
+
+    fun openedConnection(connection: ClientConnection) {
+        synchronized(connectionsLock) {
+            connections.add(connection)
+            printConnectionInfo("Opened connection.")
+        }
+    }
+
+    fun closedConnection(connection: ClientConnection) {
+        connection.closeOutbound()
+        synchronized(connectionsLock) {
+            connections.remove(connection)
+            printConnectionInfo("Closed connection.")
+        }
+
+        if (!connection.isDeveloper) {
+            submit {
+                val removals = synchronized(userCodeWriteLock) {
+                    backplane?.publish(ConnectionClosedMessage(name, connection.connectionId))
+                    userCode.disconnected(connection.connectionId)
+                }
+                removals.forEach { removal -> sendTo({ it.isDeveloper }, removal) }
+            }
+        }
+    }
+
+    private fun submit(task: () -> Unit) {
+        if (!dispatcher.submit(RoomTask(task))) {
+            // The dispatcher is closed, nothing else runs on it anymore
+            task()
+        }
+    }
+
+    fun createCompleteUserCodePacket(): CompleteUserCodePacket {
+        val view = userCode.view
+        return CompleteUserCodePacket(view.code, view.sequence)
+    }
+
+    fun createUserCodePacket(protocolVersion: Int): Packet {
+        if (protocolVersion < PROTOCOL_VERSION_SNIPPETS) {
+            return createCompleteUserCodePacket()
+        }
+        val view = userCode.view
+        return ClusteredUserCodePacket(clusterUserCode(view.code), view.sequence)
+    }
+
+    private fun sendPatch(packet: DeveloperPatchPacket, text: String) {
+        sendTo({ !it.isDeveloper && it.protocolVersion >= PROTOCOL_VERSION_PATCHES }, packet)
+        sendTo({ !it.isDeveloper && it.protocolVersion < PROTOCOL_VERSION_PATCHES }, DeveloperUpdatePacket(packet.path, text))
+    }
+
+    private fun hasDeveloper(): Boolean {
+        synchronized(connectionsLock) {
+            return connections.any { it.isDeveloper }
+        }
+    }
+
+    /**
+     * Applies a change another node made and passes it on to the connections of this node, on the dispatcher
+     * like the packets of this node. Records this node already has are skipped, e.g. when they are published
+     * again after a sync.
+     */
+    fun applyRemote(record: StoreRecord) {
+        submit {
+            applyRemoteRecord(record)
+        }
+    }
+
+    private fun applyRemoteRecord(record: StoreRecord) {
+        when (record) {
+            is DeveloperTextRecord -> {
+                val changed = synchronized(developerCodeWriteLock) {
+                    (developerCode.texts[record.path] != record.text).also {
+                        if (it) {
+                            setDeveloperText(record.path, record.text)
+                            store?.append(record)
+                        }
+                    }
+                }
+                if (changed) {
+                    sendTo({ !it.isDeveloper }, DeveloperUpdatePacket(record.path, record.text))
+                }
+            }
+
+            is DeveloperPatchRecord -> {
+                val text = synchronized(developerCodeWriteLock) {
+                    applyDeveloperPatch(record.path, record.baseHash, record.hash, record.edits)?.also {
+                        store?.append(record)
+                    }
+                }
+                if (text != null) {
+                    sendPatch(DeveloperPatchPacket(record.path, record.baseHash, record.hash, record.edits), text)
+                } else if (developerCode.hashes[record.path] != record.hash) {
+                    // Missed an earlier change, the node of the developer sends the full text
+                    backplane?.publish(TextRequestMessage(name, record.path))
+                }
+            }
+
+            is UserCodeRecord, is UserCodeRemovedRecord -> {
+                val deltas = synchronized(userCodeWriteLock) {
+                    userCode.applyRemote(record)
+                }
+                deltas.forEach { delta -> sendTo({ it.isDeveloper }, delta) }
+            }
+        }
+    }
+
+    fun remoteConnectionClosed(connectionId: Int) {
+        submit {
+            val removals = synchronized(userCodeWriteLock) {
+                userCode.disconnected(connectionId)
+            }
+            removals.forEach { removal -> sendTo({ it.isDeveloper }, removal) }
+        }
+    }
+
+    fun answerTextRequest(path: String) {
+        if (!hasDeveloper()) {
+            return
+        }
+        synchronized(developerCodeWriteLock) {
+            developerCode.texts[path]?.let { backplane?.publish(RecordMessage(DeveloperTextRecord(name, path, it))) }
+        }
+    }
+
+    /**
+     * Publishes everything this node is the source of: the texts if the developer is connected here
+     * and the code of this node's users.
+     */
+    fun publishOwned() {
+        val backplane = backplane ?: return
+        if (hasDeveloper()) {
+            synchronized(developerCodeWriteLock) {
+                developerCode.texts.forEach { backplane.publish(RecordMessage(DeveloperTextRecord(name, it.key, it.value))) }
+            }
+        }
+        synchronized(userCodeWriteLock) {
+            userCode.publishOwned()
+        }
+    }
+
+    fun evictUserCode() {
+        submit {
+            val removals = synchronized(userCodeWriteLock) {
+                userCode.evict()
+            }
+            removals.forEach { removal -> sendTo({ it.isDeveloper }, removal) }
+        }
+    }
+
+    private fun processPacket(connection: ClientConnection, packet: Packet) {
+        try {
+            when (packet) {
+                is DeveloperUpdatePacket -> {
+                    if (!connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    synchronized(developerCodeWriteLock) {
+                        setDeveloperText(packet.path, packet.text)
+                        log(DeveloperTextRecord(name, packet.path, packet.text))
+                    }
+                    sendTo({ !it.isDeveloper }, packet)
+                }
+
+                is DeveloperInitBatchPacket -> {
+                    if (!connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    setDeveloperTexts(packet.code)
+                    if (packet.sentFiles >= packet.totalFiles) {
+                        logger.info("Received all ${packet.totalFiles} files of '$name'")
+                    }
+                }
+
+                is DeveloperPatchPacket -> {
+                    if (!connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    val text = synchronized(developerCodeWriteLock) {
+                        applyDeveloperPatch(packet.path, packet.baseHash, packet.hash, packet.edits)?.also {
+                            log(DeveloperPatchRecord(name, packet.path, packet.baseHash, packet.hash, packet.edits))
+                        }
+                    }
+
+                    if (text == null) {
+                        // Out of sync, let the developer send the full text
+                        connection.send(DeveloperTextRequestPacket(packet.path))
+                        return
+                    }
+
+                    sendPatch(packet, text)
+                }
+
+                is DeveloperTextRequestPacket -> {
+                    if (connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    val text = developerCode.texts[packet.path]
+                    if (text != null) {
+                        connection.send(DeveloperUpdatePacket(packet.path, text))
+                    }
+                }
+
+                is UserCodeUpdatePacket -> {
+                    if (connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    val tooLong: Boolean = packet.code.size > MAX_USER_CODE_ENTRIES || packet.code.stream()
+                        .anyMatch { s: String -> s.length > MAX_USER_CODE_LENGTH }
+
+                    if (tooLong) {
+                        connection.kick(KickReason.USER_CODE_TOO_LONG)
+                        return
+                    }
+                    if (packet.path.length > MAX_PATH_LENGTH) {
+                        connection.kick(KickReason.PATH_TOO_LONG)
+                        return
+                    }
+                    // Developers only look at the normalized text, so that is all that is kept
+                    val code = packet.code.map { normalizeSnippet(it) ?: "" }
+                    val deltas = synchronized(userCodeWriteLock) {
+                        userCode.update(packet.path, connection.connectionId, connection.identity, code)
+                    }
+                    deltas.forEach { delta -> sendTo({ it.isDeveloper }, delta) }
+                }
+
+                is UserCodeResyncPacket -> {
+                    if (!connection.isDeveloper) {
+                        connection.kick(KickReason.WRONG_ROLE)
+                        return
+                    }
+
+                    connection.send(createUserCodePacket(connection.protocolVersion))
+                }
+
+                else -> {
+                    connection.kick(KickReason.UNEXPECTED_PACKET)
+                }
+            }
+        } catch (e: Exception) {
+            // Do not crash!
+            e.printStackTrace()
+        }
+    }
+}
@@ -1,24 +1,26 @@
 package muesli1.cwm
 
-import io.ktor.serialization.*
 import io.ktor.serialization.kotlinx.json.*
 import io.ktor.server.application.*
 import io.ktor.server.engine.*
 import io.ktor.server.netty.*
 import io.ktor.server.plugins.contentnegotiation.*
+import io.ktor.server.response.*
 import io.ktor.server.routing.*
 import io.ktor.server.websocket.*
-import io.ktor.util.reflect.*
-import io.ktor.utils.io.charsets.*
 import io.ktor.websocket.*
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import muesli1.cwm.plugins.*
 import org.slf4j.LoggerFactory
+import java.nio.file.Paths
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
-import kotlin.coroutines.CoroutineContext
+import java.util.concurrent.atomic.AtomicLong
 
-val REAL_PASSWORD: String = System.getenv("DEVELOPER_PASSWORD") ?: throw RuntimeException("Missing DEVELOPER_PASSWORD!")
+val REAL_PASSWORD: String = System.getenv("DEVELOPER_PASSWORD")
+    ?: System.getProperty("cwm.developerPassword")
+    ?: throw RuntimeException("Missing DEVELOPER_PASSWORD!")
 
 val logger = LoggerFactory.getLogger("ktor.application");
 
@@ -28,28 +30,63 @@ fun main() {
 }
 
 
+private sealed class Outgoing {
+    class Single(val broadcast: BroadcastPacket, val queuedNanos: Long = System.nanoTime()) : Outgoing()
+    object Resync : Outgoing()
+}
+
+object OutboundMetrics {
+    val dropped = AtomicLong(0)
+    val disconnected = AtomicLong(0)
+    val resyncs = AtomicLong(0)
+}
+
 class ClientConnection(
     val session: DefaultWebSocketServerSession,
+    val codec: PacketCodec,
+    val protocolVersion: Int,
+    // Stable id of the client installation, null for old clients
+    val identity: String? = null,
     val connectionId: Int = nextConnectionId.getAndIncrement()
 ) {
 
     var isDeveloper: Boolean = false
+    lateinit var room: Room
+
+    private val outbound = Channel<Outgoing>(OUTBOUND_QUEUE_CAPACITY)
+    private val queueDepth = AtomicInteger(0)
+    private val resyncPending = AtomicBoolean(false)
+
+    val outboundQueueDepth: Int
+        get() = queueDepth.get()
 
-    suspend fun handshake(): Boolean {
-        val receiveDeserialized = session.receiveDeserialized<String>()
+    suspend fun handshake(rooms: RoomRegistry, requestedRoom: String?): Boolean {
+        val receiveDeserialized = codec.decodeString(session.incoming.receive())
 
         if (receiveDeserialized == NO_PASSWORD) {
             // User!
+            val userRoom = rooms.forUser(requestedRoom)
+            if (userRoom == null) {
+                // The client tries again, until the developer created the room
+                session.close(CloseReason(CloseReason.Codes.TRY_AGAIN_LATER, "Unknown room."))
+                return false
+            }
+            room = userRoom
+            codec.shareBroadcastPaths(room.sharedPaths)
 
-
-            val copy = synchronized(developerCodeLock) {
-                developerCode.toMap()
+            val knownHashes = if (protocolVersion >= PROTOCOL_VERSION_SYNC) {
+                val syncPacket = codec.decodePacket(session.incoming.receive())
+                if (syncPacket !is UserSyncPacket) {
+                    return false
+                }
+                syncPacket.hashes
+            } else {
+                emptyMap()
             }
-            //println("Send ${copy.size} packets to user!")
-            copy.map { DeveloperUpdatePacket(it.key, it.value) }.forEach {
-                send(it)
+
+            room.createDeveloperSnapshot(knownHashes).forEach {
+                sendDirect(it)
             }
-            //println("yay!")
 
             return true
         }
@@ -57,14 +94,16 @@ class ClientConnection(
         if (receiveDeserialized == REAL_PASSWORD) {
             // DEVELOPER!
 
-            val initPacket = session.receiveDeserialized<Packet>()
+            val initPacket = codec.decodePacket(session.incoming.receive())
 
             if (initPacket !is DeveloperInitPacket) {
                 return false;
             }
-            processDeveloperInit(initPacket)
+            room = rooms.forDeveloper(initPacket)
+            codec.shareBroadcastPaths(room.sharedPaths)
+            room.processDeveloperInit(initPacket)
             isDeveloper = true
-            send(createCompleteUserCodePacket())
+            sendDirect(room.createUserCodePacket(protocolVersion))
 
 
             return true;
@@ -75,139 +114,133 @@ class ClientConnection(
         return false
     }
 
-    fun kick() {
-        runBlocking {
-            session.close(CloseReason(CloseReason.Codes.VIOLATED_POLICY, "Kicked."))
+    /**
+     * Gives back the room the handshake acquired, if it got that far.
+     */
+    fun releaseRoom(rooms: RoomRegistry) {
+        if (::room.isInitialized) {
+            rooms.release(room)
         }
     }
 
-
-    suspend fun send(packet: Packet) {
-        session.sendSerialized<Packet>(packet)
+    fun kick(reason: KickReason) {
+        ServerMetrics.kicked(reason)
+        outbound.close()
+        session.launch {
+            session.close(CloseReason(CloseReason.Codes.VIOLATED_POLICY, "Kicked."))
+        }
     }
 
-    init {
-
+    /**
+     * Queues the packet for the writer coroutine and never suspends.
+     * A full queue is handled according to [SLOW_CONSUMER_POLICY].
+     */
+    fun send(packet: Packet) {
+        send(BroadcastPacket(packet))
     }
-}
 
-val connections: MutableList<ClientConnection> = mutableListOf()
-val packagesToProcess: MutableList<Pair<ClientConnection, Packet>> = mutableListOf()
-val userCode: MutableMap<String, MutableMap<Int, List<String>>> = mutableMapOf()
-val developerCode: MutableMap<String, String> = mutableMapOf()
+    /**
+     * Queues a packet that is sent to other connections as well, it is only encoded once per format.
+     */
+    fun send(broadcast: BroadcastPacket) {
+        queueDepth.incrementAndGet()
+        if (outbound.trySend(Outgoing.Single(broadcast)).isSuccess) {
+            return
+        }
+        queueDepth.decrementAndGet()
 
-val connectionsLock = Object()
-val packagesLock = Object()
-val userCodeLock = Object()
-val developerCodeLock = Object()
+        if (outbound.isClosedForSend) {
+            return
+        }
 
-val nextConnectionId: AtomicInteger = AtomicInteger(0)
+        when (SLOW_CONSUMER_POLICY) {
+            SlowConsumerPolicy.DROP -> {
+                OutboundMetrics.dropped.incrementAndGet()
+            }
 
+            SlowConsumerPolicy.DISCONNECT -> {
+                OutboundMetrics.disconnected.incrementAndGet()
+                kick(KickReason.SLOW_CONSUMER)
+            }
 
-fun processDeveloperInit(initPacket: DeveloperInitPacket) {
-    logger.info("Init Server '${initPacket.projectName}'")
+            SlowConsumerPolicy.RESYNC -> {
+                if (!resyncPending.compareAndSet(false, true)) {
+                    // The queued resync already covers this packet
+                    return
+                }
+                OutboundMetrics.resyncs.incrementAndGet()
 
-    runBlocking {
-        initPacket.code.forEach {
-            synchronized(developerCodeLock) {
-                developerCode[it.key] = it.value
+                while (outbound.tryReceive().isSuccess) {
+                    queueDepth.decrementAndGet()
+                }
+                queueDepth.incrementAndGet()
+                if (!outbound.trySend(Outgoing.Resync).isSuccess) {
+                    queueDepth.decrementAndGet()
+                }
             }
-            sendTo({ !it.isDeveloper }, DeveloperUpdatePacket(it.key, it.value))
         }
     }
-}
 
-suspend fun sendTo(predicate: (ClientConnection) -> Boolean, packet: Packet) {
-    val toList = synchronized(connectionsLock) {
-        connections.filter(predicate).toList()
-    }
-    toList.forEach {
-        it.send(packet)
+    fun closeOutbound() {
+        outbound.close()
     }
-}
-
-fun printConnectionInfo(info: String) {
-    val developerCount = connections.count { it.isDeveloper }
-    val userCount = connections.size - developerCount
 
-    logger.info("$info Live connections: $userCount users and $developerCount developers")
-}
-
-fun openedConnection(connection: ClientConnection) {
-    synchronized(connectionsLock) {
-        connections.add(connection)
-        printConnectionInfo("Opened connection.")
+    private suspend fun sendDirect(packet: Packet) {
+        sendDirect(BroadcastPacket(packet))
     }
 
-}
-
-fun closedConnection(connection: ClientConnection) {
-    synchronized(connectionsLock) {
-        connections.remove(connection)
-        printConnectionInfo("Closed connection.")
+    private suspend fun sendDirect(broadcast: BroadcastPacket) {
+        val frame = codec.encodeBroadcast(broadcast)
+        ServerMetrics.sentPacket(broadcast.packet, frame.data.size)
+        session.send(frame)
     }
-}
 
-fun createCompleteUserCodePacket(): CompleteUserCodePacket {
-    val userCodeCopy: MutableMap<String, Map<Int, List<String>>> = mutableMapOf()
+    private suspend fun resync() {
+        resyncPending.set(false)
 
-    synchronized(userCodeLock) {
-        userCode.forEach {
-            userCodeCopy[it.key] = it.value.toMap()
+        if (isDeveloper) {
+            sendDirect(room.createUserCodePacket(protocolVersion))
+        } else {
+            room.createDeveloperSnapshot().forEach {
+                sendDirect(it)
+            }
         }
     }
 
-    return CompleteUserCodePacket(userCodeCopy)
-}
-
-suspend fun processPacket(connection: ClientConnection, packet: Packet) {
-    try {
-        when (packet) {
-            is DeveloperUpdatePacket -> {
-                if (!connection.isDeveloper) {
-                    connection.kick()
-                    return
-                }
-
-                synchronized(developerCodeLock) {
-                    developerCode[packet.path] = packet.text
-                }
-                sendTo({ !it.isDeveloper }, packet)
-            }
-
-            is UserCodeUpdatePacket -> {
-                if (connection.isDeveloper) {
-                    connection.kick()
-                    return
-                }
-
-                val tooLong: Boolean = packet.code.size > MAX_USER_CODE_ENTRIES || packet.code.stream()
-                    .anyMatch { s: String -> s.length > MAX_USER_CODE_LENGTH }
-
-                if (tooLong) {
-                    connection.kick()
-                    return
-                }
-                synchronized(userCodeLock) {
-                    val map = userCode.computeIfAbsent(packet.path) { mutableMapOf() }
-                    map[connection.connectionId] = packet.code
+    init {
+        session.launch {
+            for (item in outbound) {
+                queueDepth.decrementAndGet()
+                when (item) {
+                    is Outgoing.Single -> {
+                        sendDirect(item.broadcast)
+                        ServerMetrics.fanOut.recordSince(item.queuedNanos)
+                    }
+                    is Outgoing.Resync -> resync()
                 }
-
-                sendTo({ it.isDeveloper }, createCompleteUserCodePacket())
-            }
-
-            else -> {
-                connection.kick()
             }
         }
-    } catch (e: Exception) {
-        // Do not crash!
-        e.printStackTrace()
     }
 }
 
+val nextConnectionId: AtomicInteger = AtomicInteger(firstConnectionId(NODE_ID))
+
 
 fun Application.module() {
+    if (BACKPLANE_HUB_PORT != null || BACKPLANE_ADDRESS != null) {
+        require(!BACKPLANE_SECRET.isNullOrEmpty()) { "BACKPLANE_SECRET must be set to use the backplane" }
+    }
+    BACKPLANE_HUB_PORT?.let { port ->
+        val hub = TcpBackplaneHub(port, BACKPLANE_SECRET!!, BACKPLANE_HUB_HOST)
+        environment.monitor.subscribe(ApplicationStopped) { hub.close() }
+    }
+    module(BACKPLANE_ADDRESS?.let { TcpBackplane.connect(it, BACKPLANE_SECRET!!) })
+}
+
+/**
+ * A server node. With a [backplane] several nodes behind a load balancer share their rooms.
+ */
+fun Application.module(backplane: Backplane?) {
     configureSecurity()
     configureRouting()
     configureSockets()
@@ -216,94 +249,69 @@ fun Application.module() {
         json()
     }
 
-    GlobalScope.launch {
-        while (true) {
-            val queue: List<Pair<ClientConnection, Packet>>
-            synchronized(packagesLock) {
-                queue = ArrayList(packagesToProcess)
-                packagesToProcess.clear()
-            }
-
-            queue.forEach { processPacket(it.first, it.second) }
-
-            delay(10)
-        }
+    val store = STORE_DIRECTORY?.let { SessionStore(Paths.get(it)) }
+    val rooms = RoomRegistry(this, store, backplane = backplane)
+    if (store != null) {
+        store.open(rooms)
+        environment.monitor.subscribe(ApplicationStopped) { store.close() }
     }
+    if (backplane != null) {
+        backplane.start { rooms.applyRemote(it) }
+        environment.monitor.subscribe(ApplicationStopped) { backplane.close() }
+    }
+    configureMetrics(rooms)
 
     routing {
-        webSocket("/connection") {
-            // send("You are connected!")
-            val connection = ClientConnection(this)
-            val handshake = connection.handshake()
-            val openedConnection = AtomicBoolean(false)
-
-            try {
-                if (handshake) {
-                    openedConnection(connection)
-                    openedConnection.set(true)
-
-
-                    launch {
-                        for (frame in incoming) {
-                            val packet = deserialized<Packet>(frame)
-
-                            synchronized(packagesLock) {
-                                packagesToProcess.add(Pair(connection, packet))
-                            }
-                        }
-                    }.join()
-                }
-            } finally {
-                if (openedConnection.get()) {
-                    closedConnection(connection)
-                }
+        route("/connection") {
+            intercept(ApplicationCallPipeline.Plugins) {
+                call.response.header(PROTOCOL_VERSION_HEADER, PROTOCOL_VERSION.toString())
+            }
+            webSocket(protocol = CBOR_PROTOCOL) {
+                handleConnection(CborPacketCodec(compressPaths = true), rooms)
+            }
+            webSocket {
+                handleConnection(JsonPacketCodec(), rooms)
             }
         }
     }
 }
 
+suspend fun DefaultWebSocketServerSession.handleConnection(
+    codec: PacketCodec,
+    rooms: RoomRegistry
+) {
+    // send("You are connected!")
+    val protocolVersion = call.request.queryParameters[PROTOCOL_VERSION_PARAMETER]?.toIntOrNull() ?: 0
+    val identity = call.request.queryParameters[CLIENT_PARAMETER]?.take(MAX_CLIENT_ID_LENGTH)
+    val connection = ClientConnection(this, codec, protocolVersion, identity)
+    val openedConnection = AtomicBoolean(false)
 
-public suspend inline fun <reified T> WebSocketServerSession.deserialized(frame: Frame): T {
-    val converter = converter
-        ?: throw WebsocketConverterNotFoundException("No converter was found for websocket")
-
-    return deserializedBase<T>(
-        converter,
-        call.request.headers.suitableCharset(),
-        frame
-    ) as T
-}
-
+    try {
+        if (connection.handshake(rooms, call.request.queryParameters[ROOM_PARAMETER])) {
+            connection.room.openedConnection(connection)
+            openedConnection.set(true)
 
-public suspend inline fun <reified T> WebSocketSession.deserializedBase(
-    converter: WebsocketContentConverter,
-    charset: Charset,
-    frame: Frame
-): Any? {
 
-    if (!converter.isApplicable(frame)) {
-        throw WebsocketDeserializeException(
-            "Converter doesn't support frame type ${frame.frameType.name}",
-            frame = frame
-        )
-    }
+            launch {
+                for (frame in incoming) {
+                    val packet = codec.decodePacket(frame)
+                    ServerMetrics.receivedPacket(packet, frame.data.size)
 
-    val typeInfo = typeInfo<T>()
-    val result = converter.deserialize(
-        charset = charset,
-        typeInfo = typeInfo,
-        content = frame
-    )
-
-    if (result is T) return result
-    if (result == null) {
-        if (typeInfo.kotlinType?.isMarkedNullable == true) return null
-        throw WebsocketDeserializeException("Frame has null content", frame = frame)
+                    if (packet is PacketBatch) {
+                        packet.packets.forEach {
+                            ServerMetrics.receivedPacket(it, 0)
+                            connection.room.dispatcher.submit(InboundPacket(connection, it))
+                        }
+                    } else {
+                        connection.room.dispatcher.submit(InboundPacket(connection, packet))
+                    }
+                }
+            }.join()
+        }
+    } finally {
+        if (openedConnection.get()) {
+            connection.room.closedConnection(connection)
+        }
+        connection.releaseRoom(rooms)
     }
-
-    throw WebsocketDeserializeException(
-        "Can't deserialize value : expected value of type ${T::class.simpleName}," +
-                " got ${result::class.simpleName}",
-        frame = frame
-    )
 }
@@ -0,0 +1,68 @@
+package muesli1.cwm
+
+import java.util.zip.Deflater
+
+/**
+ * What to do when a connection's outbound queue is full.
+ */
+enum class SlowConsumerPolicy {
+    // Drop the packet, developers detect the gap and resync themselves
+    DROP,
+    // Kick the connection, the client reconnects and receives a fresh snapshot
+    DISCONNECT,
+    // Discard everything queued and send a fresh snapshot instead
+    RESYNC
+}
+
+val OUTBOUND_QUEUE_CAPACITY: Int = System.getenv("OUTBOUND_QUEUE_CAPACITY")?.toInt() ?: 256
+val SLOW_CONSUMER_POLICY: SlowConsumerPolicy =
+    System.getenv("SLOW_CONSUMER_POLICY")?.let { SlowConsumerPolicy.valueOf(it.uppercase()) } ?: SlowConsumerPolicy.RESYNC
+
+// Rooms are only kept on disk if this is set
+val STORE_DIRECTORY: String? = System.getenv("CWM_DATA_DIR")
+val STORE_SYNC_MILLIS: Long = System.getenv("STORE_SYNC_MILLIS")?.toLong() ?: 200
+val STORE_SNAPSHOT_MILLIS: Long = System.getenv("STORE_SNAPSHOT_MILLIS")?.toLong() ?: 300_000
+val STORE_SNAPSHOT_LOG_BYTES: Long = System.getenv("STORE_SNAPSHOT_LOG_BYTES")?.toLong() ?: (64L shl 20)
+
+// permessage-deflate, frames up to DEFLATE_MIN_BYTES are not worth the CPU
+val DEFLATE_ENABLED: Boolean = System.getenv("DEFLATE_ENABLED")?.toBoolean() ?: true
+val DEFLATE_MIN_BYTES: Int = System.getenv("DEFLATE_MIN_BYTES")?.toInt() ?: 512
+// Every update is compressed once per user, so favour speed
+val DEFLATE_LEVEL: Int = System.getenv("DEFLATE_LEVEL")?.toInt() ?: Deflater.BEST_SPEED
+
+/**
+ * How long the user code of a closed connection is kept.
+ */
+enum class UserCodeRetention {
+    // Remove it as soon as the connection closes
+    DISCONNECT,
+    // Remove it a while after the connection closed
+    TTL,
+    // Keep the newest connections of every client identity, older ones of the same student are removed
+    LAST_PER_IDENTITY
+}
+
+class UserCodeRetentionSettings(
+    val policy: UserCodeRetention = System.getenv("USER_CODE_RETENTION")?.let { UserCodeRetention.valueOf(it.uppercase()) }
+        ?: UserCodeRetention.LAST_PER_IDENTITY,
+    val ttlMillis: Long = System.getenv("USER_CODE_TTL_SECONDS")?.toLong()?.times(1000) ?: 3_600_000,
+    val keepPerIdentity: Int = System.getenv("USER_CODE_KEEP_PER_IDENTITY")?.toInt() ?: 1,
+    // Hard cap per room, the longest inactive entries are evicted first, even of live connections
+    val maxBytes: Long = System.getenv("USER_CODE_MAX_BYTES")?.toLong() ?: (64L shl 20)
+)
+// How often rooms with the TTL policy look for expired user code
+const val USER_CODE_SWEEP_MILLIS: Long = 30_000
+
+// Bearer token for /metrics, which names every room. Without it the endpoint is not served
+val METRICS_TOKEN: String? = System.getenv("METRICS_TOKEN")
+
+// Nodes that share a backplane need different ids, their connection ids start at firstConnectionId(NODE_ID)
+val NODE_ID: Int = System.getenv("NODE_ID")?.toInt() ?: 0
+// host:port of the TcpBackplaneHub, a single node runs without backplane
+val BACKPLANE_ADDRESS: String? = System.getenv("BACKPLANE_ADDRESS")
+// Runs the hub inside this node
+val BACKPLANE_HUB_PORT: Int? = System.getenv("BACKPLANE_HUB_PORT")?.toInt()
+// Only local nodes can reach the hub unless it listens on another interface
+val BACKPLANE_HUB_HOST: String = System.getenv("BACKPLANE_HUB_HOST") ?: "127.0.0.1"
+// Shared by the hub and all nodes, required as soon as there is a backplane
+val BACKPLANE_SECRET: String? = System.getenv("BACKPLANE_SECRET")
@@ -0,0 +1,315 @@
+package muesli1.cwm
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.cbor.Cbor
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+private const val MAX_RECORD_BYTES = 64 * 1024 * 1024
+
+/**
+ * A change that was applied to a room. Replaying a record twice has no effect,
+ * so the log may overlap with the snapshot it is replayed on.
+ */
+@Serializable
+sealed class StoreRecord {
+    abstract val room: String
+}
+
+@Serializable
+data class DeveloperTextRecord(override val room: String, val path: String, val text: String) : StoreRecord()
+
+// Only applied if the stored text still has baseHash
+@Serializable
+data class DeveloperPatchRecord(
+    override val room: String,
+    val path: String,
+    val baseHash: Long,
+    val hash: Long,
+    val edits: List<TextEdit>
+) : StoreRecord()
+
+@Serializable
+data class UserCodeRecord(
+    override val room: String,
+    val path: String,
+    val connectionId: Int,
+    val code: List<String>,
+    val identity: String? = null
+) : StoreRecord()
+
+// All user code of the connection was evicted
+@Serializable
+data class UserCodeRemovedRecord(override val room: String, val connectionId: Int) : StoreRecord()
+
+@Serializable
+data class RoomSnapshot(
+    val name: String,
+    val developerCode: Map<String, String>,
+    val userCode: Map<String, Map<Int, List<String>>>,
+    val userCodeSequence: Long
+)
+
+/**
+ * State of all rooms when log [generation] was started. Logs before it are no longer needed.
+ */
+@Serializable
+class StoreSnapshot(val generation: Long, val rooms: List<RoomSnapshot>)
+
+/**
+ * Keeps the rooms on disk as a snapshot plus an append-only log of the records applied since.
+ * Records are buffered in memory and written and fsynced by a background thread every [syncMillis],
+ * so a crash loses at most that much. Once the log gets big or old, a new log is started and
+ * a compacted snapshot is written, after which the older files are deleted.
+ *
+ * Files: `snapshot-<generation>.cbor` and `log-<generation>.bin` with records as
+ * `[length][crc32][cbor]`. A torn record at the end of a log is ignored.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+class SessionStore(
+    private val directory: Path,
+    private val syncMillis: Long = STORE_SYNC_MILLIS,
+    private val snapshotMillis: Long = STORE_SNAPSHOT_MILLIS,
+    private val snapshotLogBytes: Long = STORE_SNAPSHOT_LOG_BYTES
+) {
+    private val bufferLock = Object()
+    // Guarded by bufferLock
+    private var buffer = ByteArrayOutputStream()
+    private var generation: Long = 0
+
+    // Only used while holding writeLock
+    private val writeLock = Object()
+    private var log: FileChannel? = null
+    private var logBytes: Long = 0
+    private var lastSnapshotNanos: Long = System.nanoTime()
+
+    private val executor = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "cwm-session-store").apply { isDaemon = true }
+    }
+
+    /**
+     * Rebuilds [rooms] from disk and starts a fresh log. Must be called before anything is appended.
+     */
+    fun open(rooms: RoomRegistry) {
+        Files.createDirectories(directory)
+
+        val start = System.nanoTime()
+        val snapshotGeneration = generations("snapshot-", ".cbor").lastOrNull()
+        // Only ids of this node matter, the others come from the backplane
+        var maxConnectionId = firstConnectionId(NODE_ID) - 1
+
+        if (snapshotGeneration != null) {
+            val snapshot = Cbor.decodeFromByteArray(StoreSnapshot.serializer(), Files.readAllBytes(snapshotFile(snapshotGeneration)))
+            snapshot.rooms.forEach { room ->
+                rooms.get(room.name).restore(room)
+                room.userCode.values.forEach { users ->
+                    users.keys.forEach { if (connectionNode(it) == NODE_ID) maxConnectionId = maxOf(maxConnectionId, it) }
+                }
+            }
+        }
+
+        val logGenerations = generations("log-", ".bin")
+        var replayed = 0
+        logGenerations.filter { it >= (snapshotGeneration ?: 0) }.forEach { logGeneration ->
+            readLog(logFile(logGeneration)) { record ->
+                rooms.get(record.room).replay(record)
+                if (record is UserCodeRecord && connectionNode(record.connectionId) == NODE_ID) {
+                    maxConnectionId = maxOf(maxConnectionId, record.connectionId)
+                }
+                replayed++
+            }
+        }
+
+        // Restored user code must not be taken over by new connections
+        nextConnectionId.updateAndGet { maxOf(it, maxConnectionId + 1) }
+
+        synchronized(writeLock) {
+            synchronized(bufferLock) {
+                generation = maxOf(snapshotGeneration ?: 0, logGenerations.lastOrNull() ?: 0) + 1
+                openLog(generation)
+            }
+        }
+
+        logger.info(
+            "Recovered ${rooms.all.size} rooms from snapshot $snapshotGeneration and $replayed log records " +
+                    "in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)} ms"
+        )
+
+        executor.scheduleWithFixedDelay({
+            try {
+                flush()
+                if (shouldCompact()) {
+                    compact(rooms)
+                }
+            } catch (e: Exception) {
+                logger.error("Could not write session store", e)
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Call while holding the lock that guards the change, so the log has the same order as memory.
+     */
+    fun append(record: StoreRecord) {
+        val bytes = Cbor.encodeToByteArray(StoreRecord.serializer(), record)
+        val crc = CRC32()
+        crc.update(bytes)
+
+        synchronized(bufferLock) {
+            val output = DataOutputStream(buffer)
+            output.writeInt(bytes.size)
+            output.writeInt(crc.value.toInt())
+            output.write(bytes)
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far.
+     */
+    fun flush() {
+        synchronized(writeLock) {
+            val bytes = takeBuffer()
+            val channel = log ?: return
+            if (bytes.isNotEmpty()) {
+                writeFully(channel, bytes)
+                channel.force(false)
+                logBytes += bytes.size
+            }
+        }
+    }
+
+    /**
+     * Starts a new log and writes a snapshot that makes all older files obsolete.
+     */
+    fun compact(rooms: RoomRegistry) {
+        val snapshotGeneration = synchronized(writeLock) {
+            val bytes: ByteArray
+            val next: Long
+            synchronized(bufferLock) {
+                bytes = buffer.toByteArray()
+                buffer = ByteArrayOutputStream()
+                generation += 1
+                next = generation
+            }
+
+            log?.let {
+                writeFully(it, bytes)
+                it.force(false)
+                it.close()
+            }
+            openLog(next)
+            lastSnapshotNanos = System.nanoTime()
+            next
+        }
+
+        // Everything before the new log is applied to the rooms now, later records may be
+        // included as well and are skipped or reapplied harmlessly on replay
+        val snapshot = StoreSnapshot(snapshotGeneration, rooms.all.map { it.snapshot() })
+        val bytes = Cbor.encodeToByteArray(StoreSnapshot.serializer(), snapshot)
+
+        val temporary = directory.resolve("snapshot-$snapshotGeneration.tmp")
+        FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use {
+            writeFully(it, bytes)
+            it.force(true)
+        }
+        Files.move(temporary, snapshotFile(snapshotGeneration), StandardCopyOption.ATOMIC_MOVE)
+
+        generations("snapshot-", ".cbor").filter { it < snapshotGeneration }.forEach { Files.deleteIfExists(snapshotFile(it)) }
+        generations("log-", ".bin").filter { it < snapshotGeneration }.forEach { Files.deleteIfExists(logFile(it)) }
+
+        logger.info("Wrote snapshot $snapshotGeneration with ${snapshot.rooms.size} rooms (${bytes.size} bytes)")
+    }
+
+    fun close() {
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+        synchronized(writeLock) {
+            flush()
+            log?.close()
+            log = null
+        }
+    }
+
+    private fun shouldCompact(): Boolean {
+        synchronized(writeLock) {
+            if (logBytes >= snapshotLogBytes) {
+                return true
+            }
+            return logBytes > 0 && System.nanoTime() - lastSnapshotNanos >= TimeUnit.MILLISECONDS.toNanos(snapshotMillis)
+        }
+    }
+
+    private fun takeBuffer(): ByteArray {
+        synchronized(bufferLock) {
+            if (buffer.size() == 0) {
+                return ByteArray(0)
+            }
+            val bytes = buffer.toByteArray()
+            buffer = ByteArrayOutputStream()
+            return bytes
+        }
+    }
+
+    private fun openLog(logGeneration: Long) {
+        log = FileChannel.open(logFile(logGeneration), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+        logBytes = 0
+    }
+
+    private fun writeFully(channel: FileChannel, bytes: ByteArray) {
+        val byteBuffer = ByteBuffer.wrap(bytes)
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer)
+        }
+    }
+
+    private fun readLog(file: Path, consumer: (StoreRecord) -> Unit) {
+        DataInputStream(BufferedInputStream(Files.newInputStream(file), 1 shl 16)).use { input ->
+            while (true) {
+                val bytes = try {
+                    val length = input.readInt()
+                    val crc = input.readInt()
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        logger.warn("Corrupt record in $file, ignoring the rest of it")
+                        return
+                    }
+                    ByteArray(length).also {
+                        input.readFully(it)
+                        val actual = CRC32()
+                        actual.update(it)
+                        if (actual.value.toInt() != crc) {
+                            logger.warn("Corrupt record in $file, ignoring the rest of it")
+                            return
+                        }
+                    }
+                } catch (e: EOFException) {
+                    // End of log or a record that was only written partially
+                    return
+                }
+                consumer(Cbor.decodeFromByteArray(StoreRecord.serializer(), bytes))
+            }
+        }
+    }
+
+    private fun generations(prefix: String, suffix: String): List<Long> {
+        Files.list(directory).use { files ->
+            return files.map { it.fileName.toString() }
+                .filter { it.startsWith(prefix) && it.endsWith(suffix) }
+                .map { it.substring(prefix.length, it.length - suffix.length).toLongOrNull() }
+                .toList()
+                .filterNotNull()
+                .sorted()
+        }
+    }
+
+    private fun snapshotFile(snapshotGeneration: Long) = directory.resolve("snapshot-$snapshotGeneration.cbor")
+    private fun logFile(logGeneration: Long) = directory.resolve("log-$logGeneration.bin")
+}
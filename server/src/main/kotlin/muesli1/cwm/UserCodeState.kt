@@ -0,0 +1,274 @@
+package muesli1.cwm
+
+import kotlinx.collections.immutable.PersistentMap
+import kotlinx.collections.immutable.persistentMapOf
+import java.util.concurrent.TimeUnit
+
+/**
+ * Immutable state of the user code at one [sequence]. Taking it is free and it shares
+ * all unchanged paths with the versions before and after it.
+ */
+class UserCodeView(
+    val code: PersistentMap<String, PersistentMap<Int, List<String>>>,
+    val sequence: Long,
+    val entries: Int,
+    val retainedBytes: Long
+)
+
+/**
+ * User code of one room plus what is needed to evict it again: who owns an entry, whether that
+ * connection is still open and roughly how much memory all entries take.
+ * Changes must not run concurrently, the room only makes them while holding its userCodeWriteLock.
+ * Every change publishes a new [view], which can be read from any thread without locking.
+ */
+class UserCodeState(
+    private val room: String,
+    private val settings: UserCodeRetentionSettings,
+    private val store: SessionStore?,
+    private val backplane: Backplane? = null
+) {
+    // Code of connections on other nodes is only removed for good by the node that has the connection
+    private class Owner(val connectionId: Int, val identity: String?, var connected: Boolean, val local: Boolean) {
+        var disconnectedNanos: Long = System.nanoTime()
+        var lastUpdateNanos: Long = System.nanoTime()
+        val paths: MutableSet<String> = HashSet()
+    }
+
+    private val owners: MutableMap<Int, Owner> = HashMap()
+
+    private var code: PersistentMap<String, PersistentMap<Int, List<String>>> = persistentMapOf()
+    private var sequence: Long = 0
+    private var entries: Int = 0
+    private var retainedBytes: Long = 0
+
+    @Volatile
+    var view = UserCodeView(code, sequence, entries, retainedBytes)
+        private set
+
+    fun restore(snapshot: RoomSnapshot) {
+        snapshot.userCode.forEach { (path, users) ->
+            users.forEach { put(path, owner(it.key, null, false, connectionNode(it.key) == NODE_ID), it.value) }
+        }
+        sequence = snapshot.userCodeSequence
+        publish()
+    }
+
+    fun replay(record: StoreRecord) {
+        try {
+            replayRecord(record)
+        } finally {
+            publish()
+        }
+    }
+
+    private fun replayRecord(record: StoreRecord) {
+        when (record) {
+            is UserCodeRecord -> {
+                val owner = owner(record.connectionId, record.identity, false, connectionNode(record.connectionId) == NODE_ID)
+                if (put(record.path, owner, record.code) != record.code) {
+                    sequence += 1
+                }
+            }
+
+            is UserCodeRemovedRecord -> owners[record.connectionId]?.let { remove(it, null) }
+            else -> {}
+        }
+    }
+
+    /**
+     * Stores the code of a live connection. Returns the packets for developers: the delta,
+     * followed by removals if the new entry pushed older ones out.
+     */
+    fun update(path: String, connectionId: Int, identity: String?, newCode: List<String>): List<UserCodeDeltaPacket> {
+        try {
+            return updateCode(path, connectionId, identity, newCode, true)
+        } finally {
+            publish()
+        }
+    }
+
+    /**
+     * Applies a change another node published. Returns the packets for the developers of this node.
+     */
+    fun applyRemote(record: StoreRecord): List<UserCodeDeltaPacket> {
+        try {
+            return when (record) {
+                is UserCodeRecord -> updateCode(record.path, record.connectionId, record.identity, record.code, false)
+                is UserCodeRemovedRecord -> mutableListOf<UserCodeDeltaPacket>().also { removals ->
+                    owners[record.connectionId]?.let { remove(it, removals) }
+                }
+
+                else -> emptyList()
+            }
+        } finally {
+            publish()
+        }
+    }
+
+    private fun updateCode(path: String, connectionId: Int, identity: String?, newCode: List<String>, local: Boolean): List<UserCodeDeltaPacket> {
+        val known = owners.containsKey(connectionId)
+        val owner = owner(connectionId, identity, true, local)
+        owner.connected = true
+        val previous = put(path, owner, newCode)
+        if (previous == newCode) {
+            return emptyList()
+        }
+        log(UserCodeRecord(room, path, connectionId, newCode, owner.identity), owner.local)
+
+        val regions: MutableMap<Int, String> = mutableMapOf()
+        newCode.forEachIndexed { index, region ->
+            if (previous == null || index >= previous.size || previous[index] != region) {
+                regions[index] = region
+            }
+        }
+
+        sequence += 1
+        val delta = UserCodeDeltaPacket(sequence, path, connectionId, newCode.size, regions)
+
+        // A new connection of a known student may replace older ones
+        val evict = (!known && settings.policy == UserCodeRetention.LAST_PER_IDENTITY) || retainedBytes > settings.maxBytes
+        return if (evict) listOf(delta) + evictCode() else listOf(delta)
+    }
+
+    /**
+     * Marks the connection as closed and applies the retention policy.
+     */
+    fun disconnected(connectionId: Int): List<UserCodeDeltaPacket> {
+        val owner = owners[connectionId] ?: return emptyList()
+        owner.connected = false
+        owner.disconnectedNanos = System.nanoTime()
+
+        if (owner.identity == null && settings.policy == UserCodeRetention.LAST_PER_IDENTITY) {
+            // No later connection can replace it, so it is removed like with DISCONNECT
+            val removals: MutableList<UserCodeDeltaPacket> = mutableListOf()
+            remove(owner, removals)
+            ServerMetrics.userCodeEvictedByPolicy.increment()
+            return removals + evict()
+        }
+        return evict()
+    }
+
+    /**
+     * Removes everything the retention policy or the memory cap no longer allows.
+     * Returns the packets that tell developers about the removals.
+     */
+    fun evict(): List<UserCodeDeltaPacket> {
+        try {
+            return evictCode()
+        } finally {
+            publish()
+        }
+    }
+
+    private fun evictCode(): List<UserCodeDeltaPacket> {
+        val now = System.nanoTime()
+        val removals: MutableList<UserCodeDeltaPacket> = mutableListOf()
+        val disconnected = owners.values.filter { !it.connected }
+
+        val expired = when (settings.policy) {
+            UserCodeRetention.DISCONNECT -> disconnected
+            UserCodeRetention.TTL -> disconnected.filter { now - it.disconnectedNanos >= TimeUnit.MILLISECONDS.toNanos(settings.ttlMillis) }
+            UserCodeRetention.LAST_PER_IDENTITY -> owners.values.filter { it.identity != null }
+                .groupBy { it.identity }
+                .values
+                .flatMap { sameIdentity ->
+                    sameIdentity.sortedWith(compareByDescending<Owner> { it.connected }.thenByDescending { it.lastUpdateNanos })
+                        .drop(settings.keepPerIdentity)
+                        .filter { !it.connected }
+                }
+        }
+        expired.forEach { remove(it, removals) }
+        if (expired.isNotEmpty()) {
+            ServerMetrics.userCodeEvictedByPolicy.add(expired.size.toLong())
+        }
+
+        if (retainedBytes > settings.maxBytes) {
+            // Closed connections first, then whoever has not typed for the longest time
+            val candidates = owners.values.sortedWith(
+                compareBy<Owner> { it.connected }.thenBy { if (it.connected) it.lastUpdateNanos else it.disconnectedNanos }
+            )
+            for (owner in candidates) {
+                if (retainedBytes <= settings.maxBytes) {
+                    break
+                }
+                remove(owner, removals)
+                ServerMetrics.userCodeEvictedByMemory.increment()
+            }
+        }
+        return removals
+    }
+
+    private fun publish() {
+        view = UserCodeView(code, sequence, entries, retainedBytes)
+    }
+
+    /**
+     * Publishes the code of this node's connections again, for nodes that missed it.
+     */
+    fun publishOwned() {
+        val backplane = backplane ?: return
+        owners.values.filter { it.local }.forEach { owner ->
+            owner.paths.forEach { path ->
+                code[path]?.get(owner.connectionId)?.let {
+                    backplane.publish(RecordMessage(UserCodeRecord(room, path, owner.connectionId, it, owner.identity)))
+                }
+            }
+            if (!owner.connected) {
+                backplane.publish(ConnectionClosedMessage(room, owner.connectionId))
+            }
+        }
+    }
+
+    private fun log(record: StoreRecord, local: Boolean) {
+        store?.append(record)
+        if (local) {
+            backplane?.publish(RecordMessage(record))
+        }
+    }
+
+    private fun owner(connectionId: Int, identity: String?, connected: Boolean, local: Boolean): Owner {
+        return owners.getOrPut(connectionId) { Owner(connectionId, identity, connected, local) }
+    }
+
+    private fun put(path: String, owner: Owner, newCode: List<String>): List<String>? {
+        val users = code[path] ?: persistentMapOf()
+        val previous = users[owner.connectionId]
+        if (previous != newCode) {
+            code = code.put(path, users.put(owner.connectionId, newCode))
+        }
+        if (previous == null) {
+            entries += 1
+        }
+        retainedBytes += estimateBytes(newCode) - estimateBytes(previous)
+        owner.paths.add(path)
+        owner.lastUpdateNanos = System.nanoTime()
+        return previous
+    }
+
+    private fun remove(owner: Owner, removals: MutableList<UserCodeDeltaPacket>?) {
+        owner.paths.forEach { path ->
+            val users = code[path] ?: return@forEach
+            val previous = users[owner.connectionId] ?: return@forEach
+            val remaining = users.remove(owner.connectionId)
+            code = if (remaining.isEmpty()) code.remove(path) else code.put(path, remaining)
+            entries -= 1
+            retainedBytes -= estimateBytes(previous)
+
+            sequence += 1
+            removals?.add(UserCodeDeltaPacket(sequence, path, owner.connectionId, 0, emptyMap()))
+        }
+        owners.remove(owner.connectionId)
+
+        if (removals != null) {
+            log(UserCodeRemovedRecord(room, owner.connectionId), owner.local)
+        }
+    }
+
+    private fun estimateBytes(regions: List<String>?): Long {
+        if (regions == null) {
+            return 0
+        }
+        // Map entry and list, plus header and UTF-16 chars of every string
+        return 64 + regions.sumOf { 40 + 2L * it.length }
+    }
+}
@@ -0,0 +1,31 @@
+package muesli1.cwm.plugins
+
+import io.ktor.http.*
+import io.ktor.server.application.*
+import io.ktor.server.response.*
+import io.ktor.server.routing.*
+import muesli1.cwm.METRICS_TOKEN
+import muesli1.cwm.RoomRegistry
+import muesli1.cwm.ServerMetrics
+import java.security.MessageDigest
+
+/**
+ * Serves /metrics to scrapers that send "Authorization: Bearer [token]".
+ */
+fun Application.configureMetrics(rooms: RoomRegistry, token: String? = METRICS_TOKEN) {
+    if (token.isNullOrEmpty()) {
+        return
+    }
+    val expected = "Bearer $token".toByteArray()
+
+    routing {
+        get("/metrics") {
+            val authorization = call.request.headers[HttpHeaders.Authorization]?.toByteArray()
+            if (!MessageDigest.isEqual(authorization, expected)) {
+                call.respond(HttpStatusCode.Unauthorized)
+                return@get
+            }
+            call.respondText(ServerMetrics.render(rooms), ContentType.parse("text/plain; version=0.0.4"))
+        }
+    }
+}
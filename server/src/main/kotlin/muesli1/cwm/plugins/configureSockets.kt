@@ -1,12 +1,13 @@
 package muesli1.cwm.plugins
 
-import io.ktor.serialization.kotlinx.*
 import io.ktor.server.websocket.*
 import io.ktor.websocket.*
 import java.time.Duration
 import io.ktor.server.application.*
 import io.ktor.server.routing.*
-import kotlinx.serialization.json.Json
+import muesli1.cwm.DEFLATE_ENABLED
+import muesli1.cwm.DEFLATE_LEVEL
+import muesli1.cwm.DEFLATE_MIN_BYTES
 
 fun Application.configureSockets() {
     install(WebSockets) {
@@ -15,8 +16,13 @@ fun Application.configureSockets() {
         maxFrameSize = Long.MAX_VALUE
         masking = false
 
-        contentConverter = KotlinxWebsocketSerializationConverter(Json {
-            allowStructuredMapKeys=true
-        })
+        if (DEFLATE_ENABLED) {
+            extensions {
+                install(WebSocketDeflateExtension) {
+                    compressionLevel = DEFLATE_LEVEL
+                    compressIfBiggerThan(DEFLATE_MIN_BYTES)
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,102 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.*
+import java.io.DataOutputStream
+import java.net.Socket
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.test.*
+
+class BackplaneTest {
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+    private val secret = "secret"
+
+    @AfterTest
+    fun cancelScope() {
+        scope.cancel()
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val end = System.currentTimeMillis() + 10_000
+        while (!condition()) {
+            assertTrue(System.currentTimeMillis() < end, "Timed out")
+            Thread.sleep(10)
+        }
+    }
+
+    @Test
+    fun testTcpHubRelaysInOrder() {
+        TcpBackplaneHub(0, secret).use { hub ->
+            val nodes = (0 until 3).map { TcpBackplane("127.0.0.1", hub.port, secret) }
+            val received = nodes.map { CopyOnWriteArrayList<BackplaneMessage>() }
+            nodes.forEachIndexed { i, node -> node.start { if (it != SyncRequestMessage) received[i].add(it) } }
+            waitFor { hub.connectedNodes == 3 }
+
+            val messages = (0 until 100).map { RecordMessage(DeveloperTextRecord("A", "src/A.java", "class A { int x = $it; }")) }
+            messages.forEach { nodes[0].publish(it) }
+            nodes[1].publish(ConnectionClosedMessage("A", 7))
+
+            waitFor { received[1].size == 100 && received[2].size == 101 }
+            assertEquals<List<BackplaneMessage>>(messages, received[1])
+            // Only messages of the same node keep their order
+            assertEquals<List<BackplaneMessage>>(messages, received[2].filterIsInstance<RecordMessage>())
+            assertTrue(ConnectionClosedMessage("A", 7) in received[2])
+            assertEquals(listOf<BackplaneMessage>(ConnectionClosedMessage("A", 7)), received[0])
+            nodes.forEach { it.close() }
+        }
+    }
+
+    @Test
+    fun testTcpHubRejectsWrongSecret() {
+        TcpBackplaneHub(0, secret).use { hub ->
+            Socket("127.0.0.1", hub.port).use { socket ->
+                val wrong = "guess".toByteArray()
+                DataOutputStream(socket.getOutputStream()).apply {
+                    writeInt(wrong.size)
+                    write(wrong)
+                    flush()
+                }
+                // The hub closes the connection
+                assertEquals(-1, socket.getInputStream().read())
+                assertEquals(0, hub.connectedNodes)
+            }
+        }
+    }
+
+    @Test
+    fun testRoomsConverge() {
+        val bus = InProcessBus()
+        val nodes = (0 until 2).map { bus.join() }
+        val registries = nodes.map { RoomRegistry(scope, backplane = it) }
+        nodes.zip(registries).forEach { (node, registry) -> node.start { registry.applyRemote(it) } }
+
+        registries[0].get("Tutorium").processDeveloperInit(DeveloperInitPacket("Tutorium", mutableMapOf("src/A.java" to "class A {}")))
+        waitFor { registries[1].all.any { it.snapshot().developerCode["src/A.java"] == "class A {}" } }
+        nodes.forEach { it.close() }
+    }
+
+    @Test
+    fun testRemoteUserCodeIsNotPublishedAgain() {
+        val published: MutableList<BackplaneMessage> = CopyOnWriteArrayList()
+        val backplane = object : Backplane {
+            override fun start(receiver: (BackplaneMessage) -> Unit) {}
+            override fun publish(message: BackplaneMessage) {
+                published.add(message)
+            }
+
+            override fun close() {}
+        }
+        val room = Room("Tutorium", scope, null, UserCodeRetentionSettings(UserCodeRetention.DISCONNECT), backplane)
+        val remoteConnection = firstConnectionId(1) + 5
+
+        room.applyRemote(UserCodeRecord("Tutorium", "src/A.java", remoteConnection, listOf("return 1;"), "alice"))
+        waitFor { room.createCompleteUserCodePacket().sequence == 1L }
+        assertEquals(mapOf("src/A.java" to mapOf(remoteConnection to listOf("return 1;"))), room.createCompleteUserCodePacket().code)
+
+        room.remoteConnectionClosed(remoteConnection)
+        waitFor { room.createCompleteUserCodePacket().sequence == 2L }
+        assertTrue(room.createCompleteUserCodePacket().code.isEmpty())
+        // The node of the connection publishes the removal itself
+        assertTrue(published.isEmpty())
+    }
+}
@@ -0,0 +1,49 @@
+package muesli1.cwm
+
+import io.ktor.client.request.*
+import io.ktor.client.statement.*
+import io.ktor.http.*
+import io.ktor.server.testing.*
+import muesli1.cwm.plugins.*
+import kotlin.test.*
+
+class MetricsTest {
+
+    @Test
+    fun testHistogramIsCumulative() {
+        val histogram = LatencyHistogram()
+        histogram.record(50_000)
+        histogram.record(2_000_000)
+        histogram.record(10_000_000_000)
+
+        val text = StringBuilder().also { histogram.render(it, "test_seconds", "Test") }.toString()
+        assertContains(text, "test_seconds_bucket{le=\"1.0E-4\"} 1\n")
+        assertContains(text, "test_seconds_bucket{le=\"0.0025\"} 2\n")
+        assertContains(text, "test_seconds_bucket{le=\"5.0\"} 2\n")
+        assertContains(text, "test_seconds_bucket{le=\"+Inf\"} 3\n")
+        assertContains(text, "test_seconds_count 3\n")
+    }
+
+    @Test
+    fun testMetricsEndpoint() = testApplication {
+        application {
+            val rooms = RoomRegistry(this)
+            rooms.get("Tutorium").replay(DeveloperTextRecord("Tutorium", "src/A.java", "class A {}"))
+            configureMetrics(rooms, "token")
+        }
+        ServerMetrics.kicked(KickReason.USER_CODE_TOO_LONG)
+
+        assertEquals(HttpStatusCode.Unauthorized, client.get("/metrics").status)
+        client.get("/metrics") {
+            header(HttpHeaders.Authorization, "Bearer token")
+        }.apply {
+            assertEquals(HttpStatusCode.OK, status)
+            val text = bodyAsText()
+            assertContains(text, "cwm_connections{room=\"Tutorium\",role=\"user\"} 0\n")
+            assertContains(text, "cwm_developer_code_files{room=\"Tutorium\"} 1\n")
+            assertContains(text, "cwm_developer_code_chars{room=\"Tutorium\"} 10\n")
+            assertContains(text, "cwm_kicks_total{reason=\"user_code_too_long\"}")
+            assertContains(text, "# TYPE cwm_fanout_seconds histogram")
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.test.*
+
+class PacketDispatcherTest {
+
+    private val packetCount = 200
+
+    @Test
+    fun testOrder() = runBlocking {
+        val processed = mutableListOf<Int>()
+        val dispatcher = PacketDispatcher<Int>(this) { processed.add(it) }
+
+        (0 until packetCount).forEach { assertTrue(dispatcher.submit(it)) }
+        dispatcher.close()
+        dispatcher.join()
+
+        assertEquals((0 until packetCount).toList(), processed)
+    }
+
+    @Test
+    fun testLatencyComparedToPollingLoop() = runBlocking {
+        val dispatcherLatency = withContext(Dispatchers.Default) {
+            val latencies = ConcurrentLinkedQueue<Long>()
+            val dispatcher = PacketDispatcher<Long>(this) { latencies.add(System.nanoTime() - it) }
+
+            repeat(packetCount) {
+                dispatcher.submit(System.nanoTime())
+                delay(1)
+            }
+            dispatcher.close()
+            dispatcher.join()
+            latencies
+        }
+
+        // Replica of the loop this dispatcher replaced
+        val pollingLatency = withContext(Dispatchers.Default) {
+            val latencies = ConcurrentLinkedQueue<Long>()
+            val queue = mutableListOf<Long>()
+            val lock = Object()
+
+            val loop = launch {
+                while (isActive) {
+                    val copy: List<Long>
+                    synchronized(lock) {
+                        copy = ArrayList(queue)
+                        queue.clear()
+                    }
+                    copy.forEach { latencies.add(System.nanoTime() - it) }
+                    delay(10)
+                }
+            }
+
+            repeat(packetCount) {
+                synchronized(lock) {
+                    queue.add(System.nanoTime())
+                }
+                delay(1)
+            }
+            while (latencies.size < packetCount) {
+                delay(10)
+            }
+            loop.cancelAndJoin()
+            latencies
+        }
+
+        // Only printed, timings depend on the machine
+        val dispatcherMean = dispatcherLatency.average() / 1000.0
+        val pollingMean = pollingLatency.average() / 1000.0
+        println("Mean dispatch latency: channel ${"%.1f".format(dispatcherMean)} us, polling loop ${"%.1f".format(pollingMean)} us")
+
+        assertEquals(packetCount, dispatcherLatency.size)
+        assertEquals(packetCount, pollingLatency.size)
+    }
+}
@@ -0,0 +1,74 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.*
+import kotlin.test.*
+
+class RoomTest {
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+
+    @AfterTest
+    fun cancelScope() {
+        scope.cancel()
+    }
+
+    @Test
+    fun testSnapshotSkipsKnownTexts() {
+        val room = Room("Tutorium", scope)
+        room.replay(DeveloperTextRecord("Tutorium", "src/A.java", "class A {}"))
+        room.replay(DeveloperTextRecord("Tutorium", "src/B.java", "class B {}"))
+        room.replay(DeveloperTextRecord("Tutorium", "src/C.java", "class C {}"))
+
+        val known = mapOf(
+            "src/A.java" to textHash("class A {}"),
+            "src/B.java" to textHash("class B { int old; }")
+        )
+        val snapshot = room.createDeveloperSnapshot(known).associate { it.path to it.text }
+
+        assertEquals(mapOf("src/B.java" to "class B {}", "src/C.java" to "class C {}"), snapshot)
+        assertEquals(3, room.createDeveloperSnapshot().size)
+    }
+
+    @Test
+    fun testSnapshotsAreNotChangedByLaterWrites() {
+        val room = Room("Tutorium", scope)
+        room.replay(DeveloperTextRecord("Tutorium", "src/A.java", "class A {}"))
+        room.replay(UserCodeRecord("Tutorium", "src/A.java", 1, listOf("return 1;")))
+        val snapshot = room.snapshot()
+        val packet = room.createCompleteUserCodePacket()
+
+        room.replay(DeveloperTextRecord("Tutorium", "src/A.java", "class A { int x; }"))
+        room.replay(UserCodeRecord("Tutorium", "src/A.java", 1, listOf("return 2;")))
+        room.replay(UserCodeRecord("Tutorium", "src/B.java", 2, listOf("return 3;")))
+
+        assertEquals(mapOf("src/A.java" to "class A {}"), snapshot.developerCode)
+        assertEquals(mapOf("src/A.java" to mapOf(1 to listOf("return 1;"))), packet.code)
+        assertEquals(1, packet.sequence)
+        assertEquals(3, room.createCompleteUserCodePacket().sequence)
+    }
+
+    @Test
+    fun testUsersOnlyJoinExistingRooms() {
+        val rooms = RoomRegistry(scope)
+        val init = DeveloperInitPacket("Tutorium", mutableMapOf("src/A.java" to "class A {}"))
+        val tutorium = rooms.forDeveloper(init).also { it.processDeveloperInit(init) }
+
+        assertSame(tutorium, rooms.forUser("Tutorium"))
+        // Users of a developer that did not connect yet must not end up in another room
+        assertNull(rooms.forUser("Unknown"))
+        assertEquals(listOf("Tutorium"), rooms.all.map { it.name })
+    }
+
+    @Test
+    fun testEmptyRoomsAreRemoved() {
+        val rooms = RoomRegistry(scope)
+        val init = DeveloperInitPacket("Tutorium", mutableMapOf("src/A.java" to "class A {}"))
+        val tutorium = rooms.forDeveloper(init).also { it.processDeveloperInit(init) }
+        val empty = rooms.forDeveloper(DeveloperInitPacket("Empty", mutableMapOf()))
+
+        rooms.release(empty)
+        rooms.release(tutorium)
+        // Only the room with developer texts is kept
+        assertEquals(listOf("Tutorium"), rooms.all.map { it.name })
+    }
+}
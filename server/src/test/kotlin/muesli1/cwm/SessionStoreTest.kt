@@ -0,0 +1,108 @@
+package muesli1.cwm
+
+import kotlinx.coroutines.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import kotlin.random.Random
+import kotlin.test.*
+
+class SessionStoreTest {
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+
+    @AfterTest
+    fun cancelScope() {
+        scope.cancel()
+    }
+
+    // Same order as the live path: change the room first, then log it
+    private fun apply(rooms: RoomRegistry, store: SessionStore, record: StoreRecord) {
+        rooms.get(record.room).replay(record)
+        store.append(record)
+    }
+
+    private fun recover(directory: Path): RoomRegistry {
+        val rooms = RoomRegistry(scope)
+        val store = SessionStore(directory, syncMillis = 60_000)
+        store.open(rooms)
+        store.close()
+        return rooms
+    }
+
+    private fun snapshots(rooms: RoomRegistry) = rooms.all.map { it.snapshot() }.sortedBy { it.name }
+
+    @Test
+    fun testRecoverSnapshotAndLog() {
+        val directory = Files.createTempDirectory("cwm-store")
+        val rooms = RoomRegistry(scope)
+        val store = SessionStore(directory, syncMillis = 60_000)
+        store.open(rooms)
+
+        val first = "class A {\n}\n"
+        val second = "class A {\n    int x;\n}\n"
+        apply(rooms, store, DeveloperTextRecord("A", "src/A.java", first))
+        apply(rooms, store, UserCodeRecord("A", "src/A.java", 3, listOf("return 1;")))
+        store.compact(rooms)
+
+        val edit = createTextEdit(first, second)!!
+        apply(rooms, store, DeveloperPatchRecord("A", "src/A.java", textHash(first), textHash(second), listOf(edit)))
+        apply(rooms, store, UserCodeRecord("A", "src/A.java", 3, listOf("return 2;")))
+        apply(rooms, store, DeveloperTextRecord("B", "src/B.java", "class B {}"))
+        store.close()
+
+        // A record that was only partially written before the crash
+        val log = Files.list(directory).use { files -> files.filter { it.fileName.toString().startsWith("log-") }.toList().maxOf { it } }
+        Files.write(log, byteArrayOf(0, 0, 0, 40, 1, 2), StandardOpenOption.APPEND)
+
+        val recovered = recover(directory)
+        assertEquals(snapshots(rooms), snapshots(recovered))
+        assertEquals(second, recovered.get("A").snapshot().developerCode["src/A.java"])
+        assertTrue(nextConnectionId.get() > 3)
+    }
+
+    @Test
+    fun testRecoveryTime() {
+        val files = 10_000
+        val users = 500
+        val directory = Files.createTempDirectory("cwm-store")
+        val random = Random(11)
+
+        val rooms = RoomRegistry(scope)
+        val store = SessionStore(directory, syncMillis = 60_000)
+        store.open(rooms)
+
+        val texts = Array(files) { i ->
+            "class File$i {\n    // <USER CODE>\n    // </USER CODE>\n" + "    int field${i}_x = 0;\n".repeat(80) + "}\n"
+        }
+        texts.forEachIndexed { i, text -> apply(rooms, store, DeveloperTextRecord("Lecture", "src/File$i.java", text)) }
+        repeat(users) { user ->
+            repeat(20) {
+                val path = "src/File${random.nextInt(files)}.java"
+                apply(rooms, store, UserCodeRecord("Lecture", path, 1_000_000 + user, listOf("return $user;")))
+            }
+        }
+        store.compact(rooms)
+
+        // Log tail after the snapshot: typing developers and users
+        repeat(20_000) {
+            val i = random.nextInt(files)
+            val changed = texts[i].replaceFirst("= 0;", "= ${random.nextInt(100)};")
+            val edit = createTextEdit(texts[i], changed)
+            if (edit != null) {
+                apply(rooms, store, DeveloperPatchRecord("Lecture", "src/File$i.java", textHash(texts[i]), textHash(changed), listOf(edit)))
+                texts[i] = changed
+            }
+            val user = random.nextInt(users)
+            apply(rooms, store, UserCodeRecord("Lecture", "src/File${random.nextInt(files)}.java", 1_000_000 + user, listOf("return $it;")))
+        }
+        store.close()
+
+        val start = System.nanoTime()
+        val recovered = recover(directory)
+        val millis = (System.nanoTime() - start) / 1_000_000.0
+        println("Recovered $files files and $users users from snapshot and 40k record log in ${"%.1f".format(millis)} ms")
+
+        assertEquals(snapshots(rooms), snapshots(recovered))
+    }
+}
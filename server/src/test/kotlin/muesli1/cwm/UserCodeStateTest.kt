@@ -0,0 +1,72 @@
+package muesli1.cwm
+
+import kotlin.test.*
+
+class UserCodeStateTest {
+
+    private fun state(policy: UserCodeRetention, maxBytes: Long = 1L shl 20) =
+        UserCodeState("Tutorium", UserCodeRetentionSettings(policy, 60_000, 1, maxBytes), null)
+
+    @Test
+    fun testDisconnectRemovesCode() {
+        val state = state(UserCodeRetention.DISCONNECT)
+        state.update("src/A.java", 1, "alice", listOf("return 1;"))
+        state.update("src/B.java", 1, "alice", listOf("return 2;"))
+        state.update("src/A.java", 2, "bob", listOf("return 3;"))
+
+        val removals = state.disconnected(1)
+        assertEquals(setOf("src/A.java", "src/B.java"), removals.map { it.path }.toSet())
+        assertTrue(removals.all { it.connectionId == 1 && it.size == 0 })
+        assertEquals(mapOf("src/A.java" to mapOf(2 to listOf("return 3;"))), state.view.code)
+        assertEquals(removals.last().sequence, state.view.sequence)
+    }
+
+    @Test
+    fun testReconnectReplacesOldCode() {
+        val state = state(UserCodeRetention.LAST_PER_IDENTITY)
+        state.update("src/A.java", 1, "alice", listOf("return 1;"))
+        state.update("src/A.java", 2, "bob", listOf("return 2;"))
+        assertTrue(state.disconnected(1).isEmpty())
+        state.disconnected(2)
+
+        // Alice is back with a new connection, bob is not
+        val packets = state.update("src/A.java", 3, "alice", listOf("return 3;"))
+        assertEquals(listOf(3, 1), packets.map { it.connectionId })
+        assertEquals(setOf(2, 3), state.view.code["src/A.java"]!!.keys)
+    }
+
+    @Test
+    fun testCodeWithoutIdentityIsRemovedOnDisconnect() {
+        val state = state(UserCodeRetention.LAST_PER_IDENTITY)
+        state.update("src/A.java", 1, null, listOf("return 1;"))
+        state.update("src/A.java", 2, "alice", listOf("return 2;"))
+
+        assertEquals(listOf(1), state.disconnected(1).map { it.connectionId })
+        assertTrue(state.disconnected(2).isEmpty())
+        assertEquals(setOf(2), state.view.code["src/A.java"]!!.keys)
+    }
+
+    @Test
+    fun testMemoryCap() {
+        val state = state(UserCodeRetention.TTL, maxBytes = 2_000)
+        repeat(20) { user ->
+            state.update("src/A.java", user, null, listOf("x".repeat(200)))
+        }
+
+        assertTrue(state.view.retainedBytes <= 2_000)
+        // The users that typed last are kept
+        assertTrue(19 in state.view.code["src/A.java"]!!)
+        assertFalse(0 in state.view.code["src/A.java"]!!)
+    }
+
+    @Test
+    fun testReplayRemoval() {
+        val state = state(UserCodeRetention.DISCONNECT)
+        state.replay(UserCodeRecord("Tutorium", "src/A.java", 1, listOf("return 1;")))
+        state.replay(UserCodeRecord("Tutorium", "src/A.java", 2, listOf("return 2;")))
+        state.replay(UserCodeRemovedRecord("Tutorium", 1))
+
+        assertEquals(mapOf("src/A.java" to mapOf(2 to listOf("return 2;"))), state.view.code)
+        assertEquals(3, state.view.sequence)
+    }
+}
@@ -7,4 +7,4 @@ dependencyResolutionManagement {
 }
 
 
-include("client", "server", "common", "plugin")
\ No newline at end of file
+include("client", "server", "common", "plugin", "loadtest")
\ No newline at end of file